@@ -0,0 +1,73 @@
+package pt.arquivo;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Request side of the hot path: turning the request parameters into the Solr query.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueryParsingBenchmark {
+    private ImageSearchServlet servlet;
+
+    @Setup
+    public void setup() {
+        // the parsing methods don't use the Solr client, so init() is not needed
+        servlet = new ImageSearchServlet();
+    }
+
+    @Benchmark
+    public String checkSpecialOperators() {
+        return servlet.checkSpecialOperators("praia nazaré site:sapo.pt type:jpg size:lg safe:off", new ArrayList<>());
+    }
+
+    @Benchmark
+    public String checkSpecialOperatorsPlainQuery() {
+        return servlet.checkSpecialOperators("praia nazaré surf", new ArrayList<>());
+    }
+
+    @Benchmark
+    public String checkSortOperator() {
+        ArrayList<Map.Entry<String, SolrQuery.ORDER>> sortStrings = new ArrayList<>();
+        return servlet.checkSortOperator("praia sort:imgHeight*imgWidth,desc;imgCrawlTimestamp,asc", sortStrings);
+    }
+
+    @Benchmark
+    public ArrayList<String> parseDatesYears() {
+        ArrayList<String> fqStrings = new ArrayList<>();
+        servlet.parseDates("2005", "2015", fqStrings);
+        return fqStrings;
+    }
+
+    @Benchmark
+    public ArrayList<String> parseDatesTimestamps() {
+        ArrayList<String> fqStrings = new ArrayList<>();
+        servlet.parseDates("20050101000000", "20151231235959", fqStrings);
+        return fqStrings;
+    }
+
+    @Benchmark
+    public SolrQuery addScoring() {
+        SolrQuery solrQuery = new SolrQuery("praia nazaré");
+        servlet.addScoring(solrQuery, null);
+        return solrQuery;
+    }
+}
@@ -0,0 +1,73 @@
+package pt.arquivo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.client.solrj.impl.BinaryResponseParser;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.util.JavaBinCodec;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding a javabin search response: solrj's parser, building a SolrDocument per document, against
+ * {@link V1ResponseParser}, decoding straight into the slots of the fl.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResponseParsingBenchmark {
+
+    @Param({"50", "200"})
+    public int documents;
+
+    @Param({"false", "true"})
+    public boolean thumbnails;
+
+    private byte[] response;
+    private V1Fields fields;
+
+    @Setup
+    public void setup() throws IOException {
+        fields = V1Fields.of(String.join(",", thumbnails ? SearchFixtures.THUMBNAIL_FIELDS : SearchFixtures.DEFAULT_FIELDS));
+        NamedList<Object> header = new SimpleOrderedMap<>();
+        header.add("status", 0);
+        header.add("QTime", 12);
+        NamedList<Object> solrResponse = new NamedList<>();
+        solrResponse.add("responseHeader", header);
+        solrResponse.add("response", SearchFixtures.documents(documents, thumbnails));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (JavaBinCodec codec = new JavaBinCodec()) {
+            codec.marshal(solrResponse, bytes);
+        }
+        response = bytes.toByteArray();
+    }
+
+    @Benchmark
+    public Object solrDocuments() {
+        NamedList<Object> parsed = new BinaryResponseParser().processResponse(new ByteArrayInputStream(response), null);
+        return V1DocumentList.of((SolrDocumentList) parsed.get("response"), fields.getSlots());
+    }
+
+    @Benchmark
+    public Object v1Documents() {
+        NamedList<Object> parsed = new V1ResponseParser(fields.getSlots()).processResponse(new ByteArrayInputStream(response), null);
+        return V1DocumentList.of((SolrDocumentList) parsed.get("response"), fields.getSlots());
+    }
+}
@@ -0,0 +1,94 @@
+package pt.arquivo;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Response side of the hot path: translating the Solr documents to V1 and serializing them to JSON.
+ * Both happen in the same pass since the results are streamed, so they are measured together.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResponseSerializationBenchmark {
+
+    @Param({"50", "200"})
+    public int documents;
+
+    @Param({"false", "true"})
+    public boolean thumbnails;
+
+    @Param({"false", "true"})
+    public boolean prettyPrint;
+
+    private V1DocumentList solrDocuments;
+    private V1Fields fields;
+    private final CountingWriter out = new CountingWriter();
+
+    @Setup
+    public void setup() {
+        fields = V1Fields.of(String.join(",", thumbnails ? SearchFixtures.THUMBNAIL_FIELDS : SearchFixtures.DEFAULT_FIELDS));
+        solrDocuments = V1DocumentList.of(SearchFixtures.documents(documents, thumbnails), fields.getSlots());
+    }
+
+    @Benchmark
+    public long serializeResults() throws IOException {
+        ImageSearchResults results = new ImageSearchResults(fields, "http://localhost/thumbnail/", solrDocuments.getNumFound(), solrDocuments.getDocumentCount(), 0,
+                "http://localhost/imagesearch?q=praia&more=pageHost", "http://localhost/imagesearch?q=praia&offset=50",
+                "http://localhost/imagesearch?q=praia&offset=0", solrDocuments, prettyPrint);
+        Gson gson = prettyPrint ? ImageSearchServlet.GSON_PRETTY : ImageSearchServlet.GSON;
+        out.count = 0;
+        JsonWriter jsonWriter = gson.newJsonWriter(out);
+        gson.toJson(results, ImageSearchResults.class, jsonWriter);
+        jsonWriter.flush();
+        return out.count;
+    }
+
+    /**
+     * Stands in for the servlet writer, counting characters so the output can't be optimized away.
+     */
+    static final class CountingWriter extends Writer {
+        long count;
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void write(int c) {
+            count++;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
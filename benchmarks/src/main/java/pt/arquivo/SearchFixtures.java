@@ -0,0 +1,76 @@
+package pt.arquivo;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Date;
+import java.util.Random;
+
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+
+/**
+ * Synthetic Solr documents shaped like the ones the images collection returns for the default fields.
+ */
+final class SearchFixtures {
+    // fields requested by default, see V1_DEFAULT_FL_STRING on ImageSearchServlet
+    static final String[] DEFAULT_FIELDS = ("imgDigest,imgSrc,imgMimeType,imgHeight,imgWidth,imgTstamp,imgTitle,imgAlt,imgCaption,"
+            + "pageURL,pageTstamp,pageTitle,collection,imgLinkToArchive,pageLinkToArchive").split(",");
+    static final String[] THUMBNAIL_FIELDS = Arrays.copyOf(DEFAULT_FIELDS, DEFAULT_FIELDS.length + 1);
+
+    static {
+        THUMBNAIL_FIELDS[DEFAULT_FIELDS.length] = "imgThumbnailBase64";
+    }
+
+    private static final String[] WORDS = {"praia", "lisboa", "arquivo", "sapo", "porto", "benfica", "mapa", "festa",
+            "escola", "câmara", "municipal", "história", "fotografia", "natal", "verão", "concerto"};
+
+    private SearchFixtures() {
+    }
+
+    /**
+     * @param size       - number of documents
+     * @param thumbnails - whether the documents carry a base64 thumbnail (around 8KB each)
+     * @return documents as returned by Solr for a search page
+     */
+    static SolrDocumentList documents(int size, boolean thumbnails) {
+        Random random = new Random(size);
+        SolrDocumentList documents = new SolrDocumentList();
+        documents.setNumFound(123456);
+        for (int i = 0; i < size; i++) {
+            String host = "www." + word(random) + "-" + i + ".pt";
+            SolrDocument doc = new SolrDocument();
+            doc.addField("id", Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong()));
+            doc.addField("imgUrl", "http://" + host + "/imagens/" + word(random) + "_" + i + ".jpg");
+            doc.addField("imgMimeType", "image/jpeg");
+            doc.addField("imgHeight", 200 + random.nextInt(800));
+            doc.addField("imgWidth", 200 + random.nextInt(800));
+            doc.addField("imgCrawlTimestamp", new Date(1000000000000L + random.nextInt(Integer.MAX_VALUE) * 300L));
+            doc.addField("imgTitle", sentence(random, 4));
+            doc.addField("imgAlt", sentence(random, 6));
+            doc.addField("imgCaption", Arrays.asList(sentence(random, 10), sentence(random, 8)));
+            doc.addField("pageUrl", "http://" + host + "/noticias/" + word(random) + ".html");
+            doc.addField("pageCrawlTimestamp", new Date(1000000000000L + random.nextInt(Integer.MAX_VALUE) * 300L));
+            doc.addField("pageTitle", sentence(random, 8));
+            doc.addField("collection", "AWP" + (1 + random.nextInt(30)));
+            if (thumbnails) {
+                byte[] image = new byte[6 * 1024];
+                random.nextBytes(image);
+                doc.addField("imgSrcBase64", Base64.getEncoder().encodeToString(image));
+            }
+            documents.add(doc);
+        }
+        return documents;
+    }
+
+    private static String word(Random random) {
+        return WORDS[random.nextInt(WORDS.length)];
+    }
+
+    private static String sentence(Random random, int words) {
+        StringBuilder sentence = new StringBuilder(word(random));
+        for (int i = 1; i < words; i++) {
+            sentence.append(' ').append(word(random));
+        }
+        return sentence.toString();
+    }
+}
@@ -1,6 +1,8 @@
 package pt.arquivo;
 
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.TimeZone;
@@ -41,19 +43,202 @@ public class APIVersionTranslator {
 
     private static final TimeZone TIMEZONE = TimeZone.getTimeZone("GMT");
 
-    public static final SimpleDateFormat V1_DATE_FORMAT = new SimpleDateFormat("yyyyMMddHHmmss") {
+    // Only used for timestamps the codec below does not cover, e.g. the lenient inputs SimpleDateFormat accepts
+    private static final SimpleDateFormat LEGACY_V1_DATE_FORMAT = new SimpleDateFormat("yyyyMMddHHmmss") {
         {
             setTimeZone(TIMEZONE);
         }
     };
 
-    public static final SimpleDateFormat V2_DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSX", Locale.US){
+    private static final SimpleDateFormat LEGACY_V2_DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSX", Locale.US){
         {
             setTimeZone(TIMEZONE);
         }
     };
 
+    // From 1583 to 9999 the Julian/Gregorian calendar of SimpleDateFormat matches the proleptic Gregorian
+    // arithmetic below and years always have four digits
+    private static final int MIN_YEAR = 1583;
+    private static final int MAX_YEAR = 9999;
+    private static final long MILLIS_PER_DAY = 86_400_000L;
+    private static final long MIN_MILLIS = daysFromCivil(MIN_YEAR, 1, 1) * MILLIS_PER_DAY;
+    private static final long MAX_MILLIS = daysFromCivil(MAX_YEAR + 1, 1, 1) * MILLIS_PER_DAY;
+    private static final int V1_LENGTH = 14;
+    private static final int[] DAYS_IN_MONTH = {31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
 
+    /**
+     * Parses a V1 timestamp (yyyyMMddHHmmss, GMT) accepting exactly what SimpleDateFormat accepts.
+     * Canonical timestamps are decoded directly, and so are the rejections of bare years and other short numbers,
+     * anything else goes through a SimpleDateFormat.
+     *
+     * @param timestamp - V1 timestamp
+     * @return milliseconds since the epoch, or null if it could not be parsed
+     */
+    public static Long parseV1(String timestamp) {
+        long millis = decodeV1(timestamp);
+        if (millis != Long.MIN_VALUE) {
+            return millis;
+        }
+        if (isShortNumber(timestamp)) {
+            // the seconds, last of the abutting fields, get no digit, SimpleDateFormat would throw
+            return null;
+        }
+        try {
+            return ((SimpleDateFormat) LEGACY_V1_DATE_FORMAT.clone()).parse(timestamp).getTime();
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Formats a date as a V1 timestamp (yyyyMMddHHmmss, GMT)
+     *
+     * @param date - a {@link Date}, as returned by Solr, or a {@link Number} of milliseconds
+     */
+    public static String formatV1(Object date) {
+        long millis = toMillis(date);
+        if (millis < MIN_MILLIS || millis >= MAX_MILLIS) {
+            return ((SimpleDateFormat) LEGACY_V1_DATE_FORMAT.clone()).format(date);
+        }
+        char[] out = new char[V1_LENGTH];
+        encode(millis, out, false);
+        return new String(out);
+    }
+
+    /**
+     * Formats milliseconds since the epoch as a V2 (Solr) timestamp, e.g. 2020-01-31T23:59:59.000Z
+     */
+    public static String formatV2(long millis) {
+        if (millis < MIN_MILLIS || millis >= MAX_MILLIS) {
+            return ((SimpleDateFormat) LEGACY_V2_DATE_FORMAT.clone()).format(millis);
+        }
+        char[] out = new char[24];
+        encode(millis, out, true);
+        return new String(out);
+    }
+
+    private static long toMillis(Object date) {
+        if (date instanceof Date) {
+            return ((Date) date).getTime();
+        } else if (date instanceof Number) {
+            return ((Number) date).longValue();
+        }
+        // let SimpleDateFormat fail with its usual exception
+        return Long.MIN_VALUE;
+    }
+
+    /**
+     * @return milliseconds since the epoch, or Long.MIN_VALUE when the timestamp is not canonical and has to be
+     * left to SimpleDateFormat. A digit after the 14th would be read as more seconds, so only a non digit may follow.
+     */
+    private static long decodeV1(String timestamp) {
+        if (timestamp.length() < V1_LENGTH
+                || (timestamp.length() > V1_LENGTH && isDigit(timestamp.charAt(V1_LENGTH)))) {
+            return Long.MIN_VALUE;
+        }
+        for (int i = 0; i < V1_LENGTH; i++) {
+            if (!isDigit(timestamp.charAt(i))) {
+                return Long.MIN_VALUE;
+            }
+        }
+        int year = digits(timestamp, 0, 4);
+        int month = digits(timestamp, 4, 2);
+        int day = digits(timestamp, 6, 2);
+        int hour = digits(timestamp, 8, 2);
+        int minute = digits(timestamp, 10, 2);
+        int second = digits(timestamp, 12, 2);
+        if (year < MIN_YEAR || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)
+                || hour > 23 || minute > 59 || second > 59) {
+            return Long.MIN_VALUE;
+        }
+        long seconds = daysFromCivil(year, month, day) * 86_400L + hour * 3600 + minute * 60 + second;
+        return seconds * 1000L;
+    }
+
+    /**
+     * @return true for all digit strings of up to 12 characters, e.g. the years of the from and to parameters
+     */
+    private static boolean isShortNumber(String timestamp) {
+        if (timestamp.length() > V1_LENGTH - 2) {
+            return false;
+        }
+        for (int i = 0; i < timestamp.length(); i++) {
+            if (!isDigit(timestamp.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // yyyyMMddHHmmss, or yyyy-MM-ddTHH:mm:ss.SSSZ when extended
+    private static void encode(long millis, char[] out, boolean extended) {
+        long days = Math.floorDiv(millis, MILLIS_PER_DAY);
+        int millisOfDay = (int) Math.floorMod(millis, MILLIS_PER_DAY);
+
+        // civil from days, see http://howardhinnant.github.io/date_algorithms.html
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        int dayOfEra = (int) (z - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int shiftedMonth = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+        int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+        int year = (int) (yearOfEra + era * 400) + (month <= 2 ? 1 : 0);
+
+        int pos = put(out, 0, year, 4);
+        if (extended) out[pos++] = '-';
+        pos = put(out, pos, month, 2);
+        if (extended) out[pos++] = '-';
+        pos = put(out, pos, day, 2);
+        if (extended) out[pos++] = 'T';
+        pos = put(out, pos, millisOfDay / 3_600_000, 2);
+        if (extended) out[pos++] = ':';
+        pos = put(out, pos, millisOfDay / 60_000 % 60, 2);
+        if (extended) out[pos++] = ':';
+        pos = put(out, pos, millisOfDay / 1000 % 60, 2);
+        if (extended) {
+            out[pos++] = '.';
+            pos = put(out, pos, millisOfDay % 1000, 3);
+            out[pos] = 'Z';
+        }
+    }
+
+    private static long daysFromCivil(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        long era = Math.floorDiv(y, 400);
+        int yearOfEra = (int) (y - era * 400);
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        if (month == 2 && year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) {
+            return 29;
+        }
+        return DAYS_IN_MONTH[month - 1];
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int digits(String s, int from, int length) {
+        int value = 0;
+        for (int i = from; i < from + length; i++) {
+            value = value * 10 + (s.charAt(i) - '0');
+        }
+        return value;
+    }
+
+    private static int put(char[] out, int pos, int value, int length) {
+        for (int i = pos + length - 1; i >= pos; i--) {
+            out[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return pos + length;
+    }
 
     public static String v1Tov2(String field){
         return V1_TO_V2_MAP.getOrDefault(field, field);
@@ -0,0 +1,227 @@
+package pt.arquivo;
+
+import java.io.Closeable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.gson.JsonParser;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.common.params.CommonParams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pt.arquivo.metrics.ImageSearchMetrics;
+
+/**
+ * Decides whether a search may go to Solr, before it does. Each client IP has a {@link TokenBucket} from which
+ * every search takes tokens according to its estimated cost (see {@link #cost(SolrQuery)}), and at most
+ * admissionMaxConcurrent searches run at a time, with a bounded number more waiting for their turn.
+ * Searches over either limit are rejected with the time after which retrying makes sense.
+ */
+class AdmissionController implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(AdmissionController.class);
+
+    private final double clientRate = ImageSearchProperties.getInt("admissionClientRatePerSecond", 10);
+    private final double clientBurst = ImageSearchProperties.getInt("admissionClientBurst", 60);
+    private final int maxClients = ImageSearchProperties.getInt("admissionMaxClients", 100000);
+    private final int maxConcurrent = ImageSearchProperties.getInt("admissionMaxConcurrent", 64);
+    private final int maxQueued = ImageSearchProperties.getInt("admissionMaxQueued", 128);
+    private final long queueTimeoutMillis = ImageSearchProperties.getLong("admissionQueueTimeoutMillis", 2000);
+    // proxies in front of the service, each appending the address it got the request from to X-Forwarded-For
+    private final int trustedProxies = ImageSearchProperties.getInt("admissionTrustedProxies", 1);
+
+    // the map is lock-free for reads and striped for updates, each bucket is a single atomic
+    private final ConcurrentHashMap<String, TokenBucket> clients = new ConcurrentHashMap<>();
+    // shared by the new clients while the map is full, until idle ones are removed
+    private final TokenBucket overflowClients;
+    private final ScheduledExecutorService idleClientEvictor;
+    private final Semaphore running;
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder overloaded = new LongAdder();
+
+    AdmissionController() {
+        overflowClients = clientRate > 0 ? new TokenBucket(clientRate, clientBurst) : null;
+        running = maxConcurrent > 0 ? new Semaphore(maxConcurrent) : null;
+
+        if (clientRate > 0) {
+            idleClientEvictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "imagesearch-admission-evictor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            // a full bucket is the same as a new one
+            idleClientEvictor.scheduleWithFixedDelay(() -> clients.values().removeIf(TokenBucket::isFull),
+                    1, 1, TimeUnit.MINUTES);
+        } else {
+            idleClientEvictor = null;
+        }
+
+        ImageSearchMetrics.registerCounter("admission_rate_limited_total", "Searches rejected because their client went over its rate", rateLimited::sum);
+        ImageSearchMetrics.registerCounter("admission_overloaded_total", "Searches rejected because too many were running and waiting", overloaded::sum);
+        ImageSearchMetrics.registerGauge("admission_clients", "Clients with a rate limit bucket", clients::size);
+        if (running != null) {
+            ImageSearchMetrics.registerGauge("admission_running_searches", "Searches admitted and not finished", () -> maxConcurrent - running.availablePermits());
+            ImageSearchMetrics.registerGauge("admission_queued_searches", "Searches waiting to be admitted", queued::get);
+        }
+        LOG.info("[AdmissionController] " + clientRate + " tokens per second per client, " + maxConcurrent + " concurrent searches");
+    }
+
+    // a thumbnail missing from its cache: a single document fetched by its digest, a page of results shows dozens
+    static final double THUMBNAIL_COST = 0.1;
+    // an image missing from the lookup cache, fetched by its digest with the others of the lookup
+    static final double LOOKUP_COST_PER_IMAGE = 0.1;
+    // a facet counts every match of the search again, by a field, a range or a query
+    static final double FACET_COST = 0.5;
+
+    /**
+     * Estimated cost of a search in tokens, a plain first page costs about 1.5. Solr has to collect offset + rows
+     * hits, so deep pages cost the most, and function range filters, sorts and facets are computed for every match.
+     *
+     * @param solrQuery - query about to be sent to Solr
+     * @return tokens taken from the client bucket
+     */
+    static double cost(SolrQuery solrQuery) {
+        double cost = 1;
+        Integer rows = solrQuery.getRows();
+        Integer start = solrQuery.getStart();
+        cost += (rows != null ? rows : 10) / 100.0;
+        cost += (start != null ? start : 0) / 1000.0;
+        if ("*:*".equals(solrQuery.getQuery())) {
+            // nothing narrows the match set
+            cost += 1;
+        }
+        String[] filterQueries = solrQuery.getFilterQueries();
+        if (filterQueries != null) {
+            for (String filterQuery : filterQueries) {
+                if (filterQuery.startsWith("{!frange")) {
+                    cost += 1;
+                }
+            }
+        }
+        String sort = solrQuery.get(CommonParams.SORT);
+        if (sort != null) {
+            for (String sortClause : sort.split(",(?![^(]*\\))")) {
+                if (sortClause.contains("(")) {
+                    cost += 2;
+                }
+            }
+        }
+        String jsonFacet = solrQuery.get(ImageFacets.JSON_FACET);
+        if (jsonFacet != null) {
+            cost += FACET_COST * new JsonParser().parse(jsonFacet).getAsJsonObject().size();
+        }
+        return cost;
+    }
+
+    /**
+     * Takes the tokens of the search from its client bucket and a place among the running searches, waiting for it
+     * up to admissionQueueTimeoutMillis. {@link #release()} must be called once the search is over.
+     *
+     * @param clientKey - client address, from {@link #clientKey(String, String)}
+     * @param cost      - see {@link #cost(SolrQuery)}
+     * @throws RejectedException when the client is over its rate or there are too many searches
+     */
+    void admit(String clientKey, double cost) throws RejectedException {
+        if (clientRate > 0) {
+            // a single search costing more than the burst could never pass otherwise
+            long wait = bucket(clientKey != null ? clientKey : "").nanosUntilAvailable(Math.min(cost, clientBurst));
+            if (wait > 0) {
+                rateLimited.increment();
+                throw new RejectedException("Too many requests from " + clientKey, TimeUnit.NANOSECONDS.toSeconds(wait) + 1);
+            }
+        }
+        if (running == null || running.tryAcquire()) {
+            return;
+        }
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            overloaded.increment();
+            throw new RejectedException("Too many searches running", 1);
+        }
+        try {
+            if (!running.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                overloaded.increment();
+                throw new RejectedException("Too many searches running", 1);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            overloaded.increment();
+            throw new RejectedException("Interrupted while waiting for other searches", 1);
+        } finally {
+            queued.decrementAndGet();
+        }
+    }
+
+    /**
+     * Frees the place of an admitted search
+     */
+    void release() {
+        if (running != null) {
+            running.release();
+        }
+    }
+
+    private TokenBucket bucket(String client) {
+        TokenBucket bucket = clients.get(client);
+        if (bucket != null) {
+            return bucket;
+        }
+        if (clients.size() >= maxClients) {
+            return overflowClients;
+        }
+        return clients.computeIfAbsent(client, key -> new TokenBucket(clientRate, clientBurst));
+    }
+
+    /**
+     * The address the client buckets are keyed on. Clients can write anything in X-Forwarded-For, only the entries
+     * appended by the admissionTrustedProxies proxies in front of the service can be trusted: the one the outermost
+     * of them appended, counting from the right, is the address the request came from.
+     *
+     * @param forwardedFor - X-Forwarded-For header, may be null
+     * @param remoteAddr   - address of the connection
+     * @return the client address
+     */
+    String clientKey(String forwardedFor, String remoteAddr) {
+        if (trustedProxies <= 0 || forwardedFor == null || forwardedFor.trim().isEmpty()) {
+            return remoteAddr;
+        }
+        String[] addresses = forwardedFor.split(",");
+        // with fewer entries than proxies every one of them was appended by a trusted proxy
+        return addresses[Math.max(0, addresses.length - trustedProxies)].trim();
+    }
+
+    @Override
+    public void close() {
+        if (idleClientEvictor != null) {
+            idleClientEvictor.shutdownNow();
+        }
+        ImageSearchMetrics.unregister("admission_rate_limited_total");
+        ImageSearchMetrics.unregister("admission_overloaded_total");
+        ImageSearchMetrics.unregister("admission_clients");
+        ImageSearchMetrics.unregister("admission_running_searches");
+        ImageSearchMetrics.unregister("admission_queued_searches");
+    }
+
+    /**
+     * A search that was not admitted, answered with 429 Too Many Requests
+     */
+    static class RejectedException extends Exception {
+        private static final long serialVersionUID = 1L;
+        private final long retryAfterSeconds;
+
+        RejectedException(String message, long retryAfterSeconds) {
+            super(message);
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        long getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+    }
+}
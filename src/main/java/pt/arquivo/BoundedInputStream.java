@@ -0,0 +1,58 @@
+package pt.arquivo;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Passes bytes through from the wrapped stream, failing once more than a limit were read.
+ */
+class BoundedInputStream extends FilterInputStream {
+    private final long limit;
+    private long count;
+
+    BoundedInputStream(InputStream in, long limit) {
+        super(in);
+        this.limit = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0) {
+            count(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        // one byte past the limit is enough to tell the body is too long
+        int read = in.read(b, off, (int) Math.min(len, limit - count + 1));
+        if (read > 0) {
+            count(read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = in.skip(Math.min(n, limit - count + 1));
+        count(skipped);
+        return skipped;
+    }
+
+    private void count(long bytes) throws IOException {
+        count += bytes;
+        if (count > limit) {
+            throw new IOException("Body is longer than " + limit + " bytes");
+        }
+    }
+
+    /**
+     * @return whether reading failed because the stream went past the limit
+     */
+    boolean isExceeded() {
+        return count > limit;
+    }
+}
@@ -0,0 +1,122 @@
+package pt.arquivo;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Turns the filters collected while parsing a search into the fq parameters sent to Solr:
+ * <ul>
+ * <li>duplicates are dropped;</li>
+ * <li>the static filters present, e.g. blocked:0, are sent as a single fq, one filterCache entry and one
+ * intersection instead of one per filter, which repeats on almost every search;</li>
+ * <li>function range filters over the same function, e.g. the size filters on product(imgHeight,imgWidth), are
+ * merged into one range, and run uncached with a high cost so Solr checks them as post filters, only on the
+ * documents matching the query and every other filter, instead of computing the function over the whole index
+ * and caching a result that rarely repeats. With a {!collapse} filter, itself a post filter, they run uncached
+ * just before it instead, as the groups must be collapsed from the documents within the range.</li>
+ * </ul>
+ */
+final class FilterPlanner {
+    // frange filters with a cost of 100 or more and cache=false are run as post filters
+    static final int POST_FILTER_COST = 200;
+    // below the cost of 100 of {!collapse}, the last filter checked before the post filters
+    static final int BEFORE_COLLAPSE_COST = 99;
+    private static final String COLLAPSE = "{!collapse";
+    private static final Pattern FRANGE = Pattern.compile("\\{!frange((?:\\s+[lu]=[-+.0-9eE]+)*)\\s*}(.+)");
+    private static final Pattern BOUND = Pattern.compile("([lu])=([-+.0-9eE]+)");
+
+    private FilterPlanner() {
+    }
+
+    /**
+     * @param fqStrings      - filters in the order they were added
+     * @param staticFilters  - filters that may be combined into one, in the order to combine them
+     * @return filter queries to send
+     */
+    static List<String> plan(List<String> fqStrings, Set<String> staticFilters) {
+        List<String> planned = new ArrayList<>(fqStrings.size());
+        StringBuilder combined = new StringBuilder();
+        Set<String> presentStatic = new LinkedHashSet<>();
+        // function -> merged bounds {l, u}, NaN when open
+        Map<String, double[]> ranges = new LinkedHashMap<>();
+
+        for (String fq : new LinkedHashSet<>(fqStrings)) {
+            if (staticFilters.contains(fq)) {
+                presentStatic.add(fq);
+                continue;
+            }
+            Matcher frange = FRANGE.matcher(fq);
+            double[] bounds = frange.matches() ? parseBounds(frange.group(1)) : null;
+            if (bounds != null) {
+                double[] merged = ranges.computeIfAbsent(frange.group(2).trim(), function -> new double[]{Double.NaN, Double.NaN});
+                if (!Double.isNaN(bounds[0])) {
+                    merged[0] = Double.isNaN(merged[0]) ? bounds[0] : Math.max(merged[0], bounds[0]);
+                }
+                if (!Double.isNaN(bounds[1])) {
+                    merged[1] = Double.isNaN(merged[1]) ? bounds[1] : Math.min(merged[1], bounds[1]);
+                }
+                continue;
+            }
+            planned.add(fq);
+        }
+
+        if (presentStatic.size() == 1) {
+            planned.add(0, presentStatic.iterator().next());
+        } else if (!presentStatic.isEmpty()) {
+            for (String filter : staticFilters) {
+                if (presentStatic.contains(filter)) {
+                    combined.append(combined.length() == 0 ? "+" : " +").append(filter);
+                }
+            }
+            planned.add(0, combined.toString());
+        }
+
+        int rangeCost = POST_FILTER_COST;
+        for (String fq : planned) {
+            if (fq.startsWith(COLLAPSE)) {
+                rangeCost = BEFORE_COLLAPSE_COST;
+                break;
+            }
+        }
+        for (Map.Entry<String, double[]> range : ranges.entrySet()) {
+            StringBuilder rangeFilter = new StringBuilder("{!frange");
+            double[] bounds = range.getValue();
+            if (!Double.isNaN(bounds[0])) {
+                rangeFilter.append(" l=").append(format(bounds[0]));
+            }
+            if (!Double.isNaN(bounds[1])) {
+                rangeFilter.append(" u=").append(format(bounds[1]));
+            }
+            rangeFilter.append(" cache=false cost=").append(rangeCost).append('}').append(range.getKey());
+            planned.add(rangeFilter.toString());
+        }
+        return planned;
+    }
+
+    /**
+     * @param localParams - l= and u= local params of a frange
+     * @return {l, u}, NaN when missing, or null if a bound is not a number
+     */
+    private static double[] parseBounds(String localParams) {
+        double[] bounds = {Double.NaN, Double.NaN};
+        Matcher bound = BOUND.matcher(localParams);
+        try {
+            while (bound.find()) {
+                bounds[bound.group(1).equals("l") ? 0 : 1] = Double.parseDouble(bound.group(2));
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return bounds;
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) && !Double.isInfinite(value) ? Long.toString((long) value) : Double.toString(value);
+    }
+}
@@ -0,0 +1,151 @@
+package pt.arquivo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Gzips a response body while it is written, once it is known to be big enough to be worth it.
+ * The first minSize bytes are kept in a buffer: if the body ends before filling it, it is sent as is,
+ * otherwise Content-Encoding is set and everything goes through the deflater from then on.
+ * {@link #finish()} must be called after the last write, the servlet output stream itself is not closed.
+ */
+class GzipResponseOutputStream extends OutputStream {
+    private static final int DEFLATER_BUFFER_SIZE = 8192;
+
+    private final OutputStream wire;
+    private final HttpServletResponse response;
+    private final int level;
+    private byte[] buffer;
+    private int buffered;
+    private LevelGzipOutputStream gzip;
+    private long bytesIn;
+
+    /**
+     * @param wire     - where the bytes go, usually the servlet output stream
+     * @param response - to set Content-Encoding on, before anything reaches the wire
+     * @param minSize  - bodies smaller than this are not compressed, 0 compresses everything
+     * @param level    - deflater level, 1 (fastest) to 9 (smallest)
+     */
+    GzipResponseOutputStream(OutputStream wire, HttpServletResponse response, int minSize, int level) {
+        this.wire = wire;
+        this.response = response;
+        this.level = level;
+        this.buffer = new byte[Math.max(0, minSize)];
+    }
+
+    /**
+     * @param acceptEncoding - Accept-Encoding request header
+     * @return whether the client takes gzip, i.e. it is listed, or covered by *, without q=0
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim();
+            if (name.equalsIgnoreCase("gzip") || name.equalsIgnoreCase("x-gzip") || name.equals("*")) {
+                boolean refused = false;
+                for (int i = 1; i < parts.length; i++) {
+                    String parameter = parts[i].trim().replace(" ", "");
+                    if (parameter.startsWith("q=") && isZero(parameter.substring(2))) {
+                        refused = true;
+                    }
+                }
+                if (!refused) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isZero(String quality) {
+        try {
+            return Double.parseDouble(quality) == 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        bytesIn += len;
+        if (gzip != null) {
+            gzip.write(b, off, len);
+        } else if (buffered + len <= buffer.length) {
+            System.arraycopy(b, off, buffer, buffered, len);
+            buffered += len;
+        } else {
+            startCompression();
+            gzip.write(b, off, len);
+        }
+    }
+
+    /**
+     * Intermediate flushes are ignored: until the threshold is reached it is not known whether to compress,
+     * and flushing the deflater would make the output bigger.
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Sends whatever is still buffered and ends the gzip stream
+     */
+    void finish() throws IOException {
+        if (gzip != null) {
+            gzip.finish();
+        } else {
+            wire.write(buffer, 0, buffered);
+        }
+        buffer = null;
+        wire.flush();
+    }
+
+    /**
+     * Releases the deflater, also when the body was not finished
+     */
+    void end() {
+        if (gzip != null) {
+            gzip.end();
+        }
+    }
+
+    private void startCompression() throws IOException {
+        response.setHeader("Content-Encoding", "gzip");
+        gzip = new LevelGzipOutputStream(wire, level);
+        gzip.write(buffer, 0, buffered);
+        buffer = null;
+    }
+
+    boolean isCompressed() {
+        return gzip != null;
+    }
+
+    /**
+     * @return uncompressed bytes written so far
+     */
+    long getBytesIn() {
+        return bytesIn;
+    }
+
+    private static class LevelGzipOutputStream extends GZIPOutputStream {
+        LevelGzipOutputStream(OutputStream out, int level) throws IOException {
+            super(out, DEFLATER_BUFFER_SIZE);
+            def.setLevel(level);
+        }
+
+        void end() {
+            def.end();
+        }
+    }
+}
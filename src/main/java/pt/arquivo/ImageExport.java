@@ -0,0 +1,170 @@
+package pt.arquivo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.params.CursorMarkParams;
+import pt.arquivo.metrics.ImageSearchMetrics;
+
+/**
+ * Every image matching a search, for bulk downloads: the query is paged with a cursorMark sorted on the uniqueKey,
+ * exportBatchSize documents at a time, and each batch is written as newline delimited JSON before the next one is
+ * fetched. Memory stays at one batch whatever the number of results, and a client reading slowly blocks the writes
+ * and so slows the queries down. At most exportMaxConcurrent exports run at once, the others are turned away, so
+ * they cannot take the Solr capacity interactive searches need.
+ * <p>
+ * Solr's /export handler is not used, it needs docValues on every exported field and most V1 fields are stored only.
+ */
+class ImageExport implements Closeable {
+    private static final String V2_ID = "id";
+
+    private final SolrClient solr;
+    private final int batchSize;
+    private final Semaphore running;
+    private final LongAdder exports = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder documents = new LongAdder();
+
+    /**
+     * @param solr - client of the images collection
+     */
+    ImageExport(SolrClient solr) {
+        this.solr = solr;
+        this.batchSize = Math.max(1, ImageSearchProperties.getInt("exportBatchSize", 1000));
+        int maxConcurrent = ImageSearchProperties.getInt("exportMaxConcurrent", 2);
+        this.running = new Semaphore(Math.max(0, maxConcurrent));
+
+        ImageSearchMetrics.registerCounter("exports_total", "Exports started", exports::sum);
+        ImageSearchMetrics.registerCounter("exports_rejected_total", "Exports turned away because exportMaxConcurrent were running", rejected::sum);
+        ImageSearchMetrics.registerCounter("export_documents_total", "Documents written by exports", documents::sum);
+        ImageSearchMetrics.registerGauge("exports_running", "Exports running", () -> maxConcurrent - running.availablePermits());
+    }
+
+    /**
+     * @return whether the export may start, if so {@link #finish()} must be called once it ends
+     */
+    boolean tryStart() {
+        if (!running.tryAcquire()) {
+            rejected.increment();
+            return false;
+        }
+        exports.increment();
+        return true;
+    }
+
+    void finish() {
+        running.release();
+    }
+
+    /**
+     * Fetches the first batch, so a failing query can still be answered with an error status
+     *
+     * @param searchQuery - parsed search, its filters and query are exported, its sort and paging are replaced
+     * @param fields      - requested fields
+     */
+    Batch first(SolrQuery searchQuery, V1Fields fields) throws SolrServerException, IOException {
+        SolrQuery solrQuery = searchQuery.getCopy();
+        // sorted on the uniqueKey, nothing to rank
+        RankingProfile.removePhraseBoosts(solrQuery);
+        solrQuery.remove(CursorMarkParams.CURSOR_MARK_PARAM);
+        solrQuery.clearSorts();
+        solrQuery.addSort(V2_ID, SolrQuery.ORDER.asc);
+        solrQuery.setStart(0);
+        solrQuery.setRows(batchSize);
+        return fetch(solrQuery, fields, CursorMarkParams.CURSOR_MARK_START);
+    }
+
+    private Batch fetch(SolrQuery solrQuery, V1Fields fields, String cursorMark) throws SolrServerException, IOException {
+        solrQuery.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+        QueryResponse response = V1ResponseParser.query(solr, solrQuery);
+        V1DocumentList results = V1DocumentList.of(response.getResults(), fields.getSlots());
+        String nextCursorMark = response.getNextCursorMark();
+        // the cursor stops changing once every document was returned
+        boolean last = nextCursorMark == null || nextCursorMark.equals(cursorMark) || results.getDocumentCount() < batchSize;
+        return new Batch(solrQuery, fields, results, last ? null : nextCursorMark);
+    }
+
+    /**
+     * Writes the first batch and each one after it, a document per line, each ending with a line break
+     *
+     * @param first        - from {@link #first(SolrQuery, V1Fields)}
+     * @param out          - body of the response, flushed after every batch
+     * @param gson         - used to serialize field values that are not plain strings, numbers or booleans
+     * @param thumbnailURL - thumbnail endpoint, for imgThumbnailUrl
+     * @return number of documents written
+     * @throws BatchException when Solr fails to answer a later batch, the IOExceptions are those of writing to out
+     */
+    long write(Batch first, Writer out, Gson gson, String thumbnailURL) throws BatchException, IOException {
+        JsonWriter jsonWriter = gson.newJsonWriter(out);
+        // one top level value per line
+        jsonWriter.setLenient(true);
+        long written = 0;
+        Batch batch = first;
+        while (true) {
+            List<Object[]> documents = batch.documents.getDocuments();
+            for (int i = 0; i < documents.size(); i++) {
+                batch.fields.write(jsonWriter, gson, documents.get(i), batch.documents.getFieldOrder(i), thumbnailURL);
+                out.write('\n');
+                written++;
+            }
+            this.documents.add(batch.documents.getDocumentCount());
+            out.flush();
+            if (batch.nextCursorMark == null) {
+                return written;
+            }
+            try {
+                batch = fetch(batch.solrQuery, batch.fields, batch.nextCursorMark);
+            } catch (SolrServerException | IOException | RuntimeException e) {
+                throw new BatchException(e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        ImageSearchMetrics.unregister("exports_total");
+        ImageSearchMetrics.unregister("exports_rejected_total");
+        ImageSearchMetrics.unregister("export_documents_total");
+        ImageSearchMetrics.unregister("exports_running");
+    }
+
+    /**
+     * Failure of Solr on a batch after the first, once the response is committed, told apart from the failures of
+     * the client connection
+     */
+    static final class BatchException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private BatchException(Exception cause) {
+            super(cause);
+        }
+    }
+
+    /**
+     * A page of an export, with the cursor to the next one
+     */
+    static final class Batch {
+        private final SolrQuery solrQuery;
+        private final V1Fields fields;
+        private final V1DocumentList documents;
+        // null on the last page
+        private final String nextCursorMark;
+
+        private Batch(SolrQuery solrQuery, V1Fields fields, V1DocumentList documents, String nextCursorMark) {
+            this.solrQuery = solrQuery;
+            this.fields = fields;
+            this.documents = documents;
+            this.nextCursorMark = nextCursorMark;
+        }
+    }
+}
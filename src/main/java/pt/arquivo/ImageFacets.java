@@ -0,0 +1,278 @@
+package pt.arquivo;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.apache.solr.common.util.NamedList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pt.arquivo.metrics.ImageSearchMetrics;
+import pt.arquivo.responses.ImageFacetsResponse;
+
+/**
+ * Counts per collection, type, size, crawl year and site of the images matching a search, computed by Solr JSON
+ * facets in the same request as the results. Each facet is named after the search parameter its values filter on:
+ * collection, type (the imgMimeType without "image/"), size (sm, md and lg, as in the size parameter), year (for
+ * from and to) and site (the pageHost, for siteSearch).
+ * <p>
+ * The counts of the whole index, with no query and only the default filters, change only with the index and are
+ * the most expensive ones, so they are computed in the background every facetsGlobalRefreshSeconds and answered
+ * from memory.
+ */
+class ImageFacets implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(ImageFacets.class);
+    static final String JSON_FACET = "json.facet";
+    static final List<String> NAMES = Collections.unmodifiableList(Arrays.asList("collection", "type", "size", "year", "site"));
+    private static final String SIZE_PREFIX = "size_";
+    private static final String MIME_TYPE_PREFIX = "image/";
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+    // json.facet of each distinct set of facets, there are only 2^5 of them
+    private static final Map<Set<String>, String> JSON_FACETS = new ConcurrentHashMap<>();
+
+    private final SolrClient solr;
+    private final Supplier<SolrQuery> globalQuery;
+    private final ScheduledExecutorService refresher;
+    // null until the first refresh
+    private volatile Global global;
+
+    /**
+     * @param solr           - client of the images collection
+     * @param globalQuery    - facet query of the whole index, built again for every refresh as the default
+     *                       filters may change, e.g. the spam list
+     * @param refreshSeconds - time between refreshes of the global facets, 0 disables them
+     */
+    ImageFacets(SolrClient solr, Supplier<SolrQuery> globalQuery, long refreshSeconds) {
+        this.solr = solr;
+        this.globalQuery = globalQuery;
+        if (refreshSeconds > 0) {
+            refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "imagesearch-facets");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+            refresher.scheduleWithFixedDelay(this::refresh, 0, refreshSeconds, TimeUnit.SECONDS);
+        } else {
+            refresher = null;
+        }
+
+        ImageSearchMetrics.registerGauge("facets_global_age_seconds", "Age of the cached facets of the whole index",
+                () -> global != null ? (System.currentTimeMillis() - global.refreshed) / 1000.0 : -1);
+    }
+
+    /**
+     * @param facetsParameter - comma separated facet names, or "all"
+     * @return the known facets asked for, in the order of {@link #NAMES}, empty when none
+     */
+    static Set<String> parseNames(String facetsParameter) {
+        Set<String> names = new LinkedHashSet<>();
+        if (facetsParameter == null || facetsParameter.isEmpty()) {
+            return names;
+        }
+        List<String> requested = Arrays.asList(facetsParameter.split(","));
+        for (String name : NAMES) {
+            if (requested.contains(name) || requested.contains("all")) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @param names - from {@link #parseNames(String)}, not empty
+     * @return json.facet parameter computing them
+     */
+    static String jsonFacet(Set<String> names) {
+        return JSON_FACETS.computeIfAbsent(names, ImageFacets::buildJsonFacet);
+    }
+
+    private static String buildJsonFacet(Set<String> names) {
+        int limit = ImageSearchProperties.getInt("facetsLimit", 20);
+        JsonObject facets = new JsonObject();
+        for (String name : names) {
+            switch (name) {
+                case "collection":
+                    // a few hundred at most, all of them
+                    facets.add(name, terms("collection", -1));
+                    break;
+                case "type":
+                    facets.add(name, terms("imgMimeType", limit));
+                    break;
+                case "site":
+                    facets.add(name, terms("pageHost", limit));
+                    break;
+                case "size":
+                    // a query facet per bucket, with the filters of the size parameter
+                    for (Map.Entry<String, String> size : ImageSearchServlet.SIZE_FILTERS.entrySet()) {
+                        JsonObject query = new JsonObject();
+                        query.addProperty("type", "query");
+                        query.addProperty("q", size.getValue());
+                        facets.add(SIZE_PREFIX + size.getKey(), query);
+                    }
+                    break;
+                case "year":
+                    JsonObject range = new JsonObject();
+                    range.addProperty("type", "range");
+                    range.addProperty("field", ImageSearchResults.V2_IMAGETSTAMP);
+                    range.addProperty("start", "1996-01-01T00:00:00Z");
+                    range.addProperty("end", "NOW/YEAR+1YEAR");
+                    range.addProperty("gap", "+1YEAR");
+                    facets.add(name, range);
+                    break;
+            }
+        }
+        return GSON.toJson(facets);
+    }
+
+    private static JsonObject terms(String field, int limit) {
+        JsonObject terms = new JsonObject();
+        terms.addProperty("type", "terms");
+        terms.addProperty("field", field);
+        terms.addProperty("limit", limit);
+        terms.addProperty("mincount", 1);
+        return terms;
+    }
+
+    /**
+     * @param searchQuery - parsed search
+     * @param names       - facets to compute, not empty
+     * @return a query counting the results of the search, without returning or ranking them
+     */
+    static SolrQuery facetQuery(SolrQuery searchQuery, Set<String> names) {
+        SolrQuery solrQuery = searchQuery.getCopy();
+        RankingProfile.removePhraseBoosts(solrQuery);
+        solrQuery.remove(CursorMarkParams.CURSOR_MARK_PARAM);
+        solrQuery.remove(CommonParams.FL);
+        solrQuery.clearSorts();
+        solrQuery.setStart(0);
+        solrQuery.setRows(0);
+        solrQuery.set(JSON_FACET, jsonFacet(names));
+        return solrQuery;
+    }
+
+    /**
+     * @param facets - facets section of a Solr response, may be null
+     * @return counts by facet name, in the order of {@link #NAMES}, values with no images left out
+     */
+    static Map<String, List<ImageFacetsResponse.Count>> parse(NamedList<?> facets) {
+        Map<String, List<ImageFacetsResponse.Count>> counts = new LinkedHashMap<>();
+        if (facets == null) {
+            return counts;
+        }
+        for (String name : NAMES) {
+            List<ImageFacetsResponse.Count> values = new ArrayList<>();
+            if (name.equals("size")) {
+                boolean counted = false;
+                for (String size : ImageSearchServlet.SIZE_FILTERS.keySet()) {
+                    Object bucket = facets.get(SIZE_PREFIX + size);
+                    if (bucket instanceof NamedList) {
+                        counted = true;
+                        addCount(values, size, ((NamedList<?>) bucket).get("count"));
+                    }
+                }
+                if (!counted) {
+                    continue;
+                }
+            } else {
+                Object facet = facets.get(name);
+                if (!(facet instanceof NamedList)) {
+                    continue;
+                }
+                Object buckets = ((NamedList<?>) facet).get("buckets");
+                if (buckets instanceof List) {
+                    for (Object bucket : (List<?>) buckets) {
+                        NamedList<?> entry = (NamedList<?>) bucket;
+                        addCount(values, value(name, entry.get("val")), entry.get("count"));
+                    }
+                }
+            }
+            counts.put(name, values);
+        }
+        return counts;
+    }
+
+    private static String value(String name, Object value) {
+        if (name.equals("year")) {
+            return APIVersionTranslator.formatV1(value).substring(0, 4);
+        }
+        String string = String.valueOf(value);
+        if (name.equals("type") && string.startsWith(MIME_TYPE_PREFIX)) {
+            return string.substring(MIME_TYPE_PREFIX.length());
+        }
+        return string;
+    }
+
+    private static void addCount(List<ImageFacetsResponse.Count> values, String value, Object count) {
+        long images = count instanceof Number ? ((Number) count).longValue() : 0;
+        if (images > 0) {
+            values.add(new ImageFacetsResponse.Count(value, images));
+        }
+    }
+
+    /**
+     * @param facetQuery - from {@link #facetQuery(SolrQuery, Set)}, with every facet
+     * @return the cached facets of the whole index if that is what the query counts, null otherwise
+     */
+    ImageFacetsResponse getGlobal(SolrQuery facetQuery) {
+        Global facets = global;
+        return facets != null && SolrQueryExecutor.cacheKey(facetQuery).equals(facets.key) ? facets.response : null;
+    }
+
+    void refresh() {
+        try {
+            SolrQuery solrQuery = globalQuery.get();
+            long start = System.currentTimeMillis();
+            QueryResponse response = solr.query(solrQuery);
+            ImageFacetsResponse facets = new ImageFacetsResponse(ImageSearchProperties.get("linkToService"),
+                    response.getResults() != null ? response.getResults().getNumFound() : 0,
+                    parse((NamedList<?>) response.getResponse().get("facets")));
+            global = new Global(SolrQueryExecutor.cacheKey(solrQuery), facets);
+            LOG.info("[ImageFacets] Refreshed the facets of the whole index in " + (global.refreshed - start) + "ms");
+        } catch (Exception e) {
+            // keep answering the previous counts
+            LOG.error("[ImageFacets] Error refreshing the facets of the whole index", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+        ImageSearchMetrics.unregister("facets_global_age_seconds");
+    }
+
+    /**
+     * Facets of the whole index, with the normalized query they were computed with
+     */
+    private static final class Global {
+        final String key;
+        final ImageFacetsResponse response;
+        final long refreshed = System.currentTimeMillis();
+
+        Global(String key, ImageFacetsResponse response) {
+            this.key = key;
+            this.response = response;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package pt.arquivo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import pt.arquivo.metrics.ImageSearchMetrics;
+
+/**
+ * Images by imgDigest, for clients that already know which images they want, e.g. to show the details of a search
+ * result. The images missing from a LRU cache bounded by imageLookupCacheMaxBytes are fetched with a single request
+ * to the real time get handler (imageLookupHandler, /get by default), or as an unscored id query when it is set to
+ * /select, so a lookup skips the parsing, scoring and sorting of a search.
+ */
+class ImageLookup implements Closeable {
+    private static final String GET_HANDLER = "/get";
+    // array header, and each value with its object header, next to the references
+    private static final long DOCUMENT_OVERHEAD = 64;
+    private static final long VALUE_OVERHEAD = 24;
+
+    private final SolrQueryExecutor solrExecutor;
+    private final AdmissionController admissionController;
+    private final String handler;
+    private final QueryResultCache<CachedImage> cache;
+    private final LongAdder notFound = new LongAdder();
+
+    /**
+     * @param solrExecutor        - Solr access layer, the lookups only go through its circuit breaker
+     * @param admissionController - admits the lookups that reach Solr
+     */
+    ImageLookup(SolrQueryExecutor solrExecutor, AdmissionController admissionController) {
+        this.solrExecutor = solrExecutor;
+        this.admissionController = admissionController;
+        String handler = ImageSearchProperties.get("imageLookupHandler");
+        this.handler = handler != null && !handler.trim().isEmpty() ? handler.trim() : GET_HANDLER;
+        this.cache = new QueryResultCache<>(
+                ImageSearchProperties.getLong("imageLookupCacheMaxBytes", 32L * 1024 * 1024),
+                ImageSearchProperties.getLong("imageLookupCacheTtlSeconds", 3600) * 1000,
+                ImageLookup::weigh);
+
+        ImageSearchMetrics.registerCounter("image_lookup_cache_hits_total", "Images looked up by digest answered from the lookup cache", cache::getHits);
+        ImageSearchMetrics.registerCounter("image_lookup_cache_misses_total", "Images looked up by digest fetched from Solr", cache::getMisses);
+        ImageSearchMetrics.registerCounter("image_lookup_cache_evictions_total", "Lookup cache entries evicted or expired", cache::getEvictions);
+        ImageSearchMetrics.registerGauge("image_lookup_cache_bytes", "Estimated size of the documents in the lookup cache", cache::getBytes);
+        ImageSearchMetrics.registerCounter("image_lookup_not_found_total", "Images looked up by digest that are not indexed or are filtered out", notFound::sum);
+    }
+
+    /**
+     * @param digests       - distinct imgDigest of the images, in the order to return them
+     * @param fields        - requested fields, from {@link V1Fields#withDigest(String)}
+     * @param filterQueries - filters the images must pass, as a search would apply them
+     * @param clientKey     - client address, from {@link AdmissionController#clientKey(String, String)}
+     * @return the images found, in the order of the digests
+     * @throws AdmissionController.RejectedException when the images missing from the cache cannot be fetched now
+     * @throws SolrCircuitBreaker.OpenException      when Solr is known to be down
+     */
+    V1DocumentList lookup(List<String> digests, V1Fields fields, List<String> filterQueries, String clientKey)
+            throws SolrServerException, IOException, AdmissionController.RejectedException {
+        // documents are only valid for the fl they were decoded with, and only for the filters they passed
+        String keyPrefix = fields.getSolrFields() + '\n' + String.join("\n", filterQueries) + '\n';
+        Map<String, CachedImage> found = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String digest : digests) {
+            CachedImage image = cache.isEnabled() ? cache.get(keyPrefix + digest) : null;
+            if (image != null) {
+                found.put(digest, image);
+            } else {
+                missing.add(digest);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            // only the images missing from the cache reach Solr
+            admissionController.admit(clientKey, missing.size() * AdmissionController.LOOKUP_COST_PER_IMAGE);
+            V1DocumentList fetched;
+            try {
+                fetched = V1DocumentList.of(
+                        solrExecutor.queryUncached(query(missing, fields, filterQueries)).getResults(), fields.getSlots());
+            } finally {
+                admissionController.release();
+            }
+            List<Object[]> documents = fetched.getDocuments();
+            for (int i = 0; i < documents.size(); i++) {
+                Object[] document = documents.get(i);
+                Object digest = document[fields.getDigestSlot()];
+                if (digest == null) {
+                    continue;
+                }
+                CachedImage image = new CachedImage(document, fetched.getFieldOrder(i));
+                found.put(digest.toString(), image);
+                if (cache.isEnabled()) {
+                    cache.put(keyPrefix + digest, image);
+                }
+            }
+        }
+
+        V1DocumentList documents = new V1DocumentList(fields.getSlots(), found.size());
+        for (String digest : digests) {
+            CachedImage image = found.get(digest);
+            if (image != null) {
+                documents.addDocument(image.document, image.fieldOrder);
+            } else {
+                notFound.increment();
+            }
+        }
+        documents.setNumFound(documents.getDocumentCount());
+        documents.setStart(0);
+        return documents;
+    }
+
+    private SolrQuery query(List<String> digests, V1Fields fields, List<String> filterQueries) {
+        SolrQuery solrQuery = new SolrQuery();
+        solrQuery.setRequestHandler(handler);
+        if (GET_HANDLER.equals(handler)) {
+            solrQuery.set("ids", String.join(",", digests));
+        } else {
+            // constant score, nothing to rank
+            solrQuery.setQuery("{!terms f=" + ThumbnailStore.V2_DIGEST + "}" + String.join(",", digests));
+            solrQuery.setRows(digests.size());
+        }
+        for (String filterQuery : filterQueries) {
+            solrQuery.addFilterQuery(filterQuery);
+        }
+        solrQuery.set("fl", fields.getSolrFields());
+        return solrQuery;
+    }
+
+    /**
+     * @return rough size of a cached document, its strings at two bytes a character
+     */
+    private static long weigh(CachedImage image) {
+        long bytes = DOCUMENT_OVERHEAD + 4L * (image.document.length + image.fieldOrder.length);
+        for (Object value : image.document) {
+            if (value != null) {
+                bytes += VALUE_OVERHEAD + (value instanceof String ? 2L * ((String) value).length() : 8);
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public void close() {
+        ImageSearchMetrics.unregister("image_lookup_cache_hits_total");
+        ImageSearchMetrics.unregister("image_lookup_cache_misses_total");
+        ImageSearchMetrics.unregister("image_lookup_cache_evictions_total");
+        ImageSearchMetrics.unregister("image_lookup_cache_bytes");
+        ImageSearchMetrics.unregister("image_lookup_not_found_total");
+    }
+
+    /**
+     * Document decoded into the slots of a fl, with the order its fields were returned in, shared by the requests
+     * that hit the cache, so read only
+     */
+    private static final class CachedImage {
+        final Object[] document;
+        final int[] fieldOrder;
+
+        CachedImage(Object[] document, int[] fieldOrder) {
+            this.document = document;
+            this.fieldOrder = fieldOrder;
+        }
+    }
+}
@@ -13,11 +13,12 @@ public class ImageSearchProperties {
 
     private static Properties getConfigs() {
         if(configs == null) {
-            String rootPath = Thread.currentThread().getContextClassLoader().getResource("").getPath();
-            String appConfigPath = rootPath + "application.properties";
-
             configs = new Properties();
             try {
+                // getResource("") is null when running from a jar, e.g. the benchmarks, fall back to the fail-safe configs
+                String rootPath = Thread.currentThread().getContextClassLoader().getResource("").getPath();
+                String appConfigPath = rootPath + "application.properties";
+
                 configs.load(new FileInputStream(appConfigPath));
             } catch (Exception e) {
                 // Fail-safe properties 
@@ -33,4 +34,25 @@ public class ImageSearchProperties {
     public static String get(String key){
         return getConfigs().getProperty(key);
     }
+
+    public static int getInt(String key, int defaultValue){
+        String value = get(key);
+        return value == null ? defaultValue : ImageSearchServlet.parseToIntWithDefault(value.trim(), defaultValue);
+    }
+
+    public static long getLong(String key, long defaultValue){
+        String value = get(key);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue){
+        String value = get(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
 }
@@ -0,0 +1,54 @@
+package pt.arquivo;
+
+import java.util.Map;
+
+import org.apache.solr.client.solrj.SolrQuery;
+
+/**
+ * State of a single search, from the request parameters to the HTTP status of the answer.
+ * Keeps everything needed to answer the request once the Solr query is done, possibly on another thread.
+ */
+class ImageSearchRequest {
+    final long startTime;
+    final long startNanos = System.nanoTime();
+    String requestURL;
+    // requestURL without the query string, the paging links are built on it
+    String baseURL;
+    String ipAddress;
+    // address the admission controller tells clients apart by
+    String clientKey;
+    String userAgent;
+    Map<String, String[]> parameters;
+
+    SolrQuery solrQuery;
+    V1Fields fields;
+    // followed by the imgDigest, links to the thumbnail endpoint
+    String thumbnailURL;
+    int start;
+    String cursor;
+    int limit;
+    boolean prettyOutput;
+    boolean debug;
+    boolean acceptsGzip;
+    // null when the index version is not known yet
+    String etag;
+
+    int status = 200;
+    // sent with 429 and 503 responses
+    long retryAfterSeconds;
+    // answered with an expired cached Solr response
+    boolean stale;
+
+    ImageSearchRequest(long startTime) {
+        this.startTime = startTime;
+    }
+
+    /**
+     * @param name - request parameter name
+     * @return the first value of the parameter, or null if it is missing
+     */
+    String getParameter(String name) {
+        String[] values = parameters.get(name);
+        return values == null || values.length == 0 ? null : values[0];
+    }
+}
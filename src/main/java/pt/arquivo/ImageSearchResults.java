@@ -1,17 +1,16 @@
 package pt.arquivo;
 
-import java.text.SimpleDateFormat;
-import java.util.Dictionary;
-import java.util.Hashtable;
-import java.util.Set;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 
-import org.apache.solr.common.SolrDocument;
-import org.apache.solr.common.SolrDocumentList;
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import pt.arquivo.responses.ImageFacetsResponse;
 
 
 public class ImageSearchResults {
-    private SimpleDateFormat V1_DATE_FORMAT;
-
     String serviceName = "Arquivo.pt - image search service.";
     String linkToService = ImageSearchProperties.get("linkToService");
     String linkToDocumentation;
@@ -29,14 +28,20 @@ public class ImageSearchResults {
     public static final String V2_PAGEURL = "pageUrl";
     public static final String V2_PAGETSTAMP = "pageCrawlTimestamp";
     public static final String V2_WAYBACKADDRESS = ImageSearchProperties.get("waybackAddress");
-    
-    // Hashtable to quickly check if each field should be included in the returned document (to support "fields" query)
-    private Dictionary<String,Boolean> fieldReturnability = new Hashtable<String,Boolean>();
 
+    // requested fields, resolved once per distinct list
+    private final V1Fields fields;
+    private final String thumbnailURL;
+
+    V1DocumentList responseItems;
 
-    SolrDocumentList responseItems;
+    // counts per facet, null when none were asked for
+    Map<String, List<ImageFacetsResponse.Count>> facets;
 
-    public ImageSearchResults(String[] requestedFields, long totalItems, int numberOfResponseItems, long offset, String linkToMoreFields, String nextPage, String previousPage, SolrDocumentList responseItems, boolean documentation) {
+    // tstamp/url of each written document, for the search log
+    final LinkedList<String> docIds = new LinkedList<>();
+
+    public ImageSearchResults(V1Fields fields, String thumbnailURL, long totalItems, int numberOfResponseItems, long offset, String linkToMoreFields, String nextPage, String previousPage, V1DocumentList responseItems, boolean documentation) {
         this.nextPage = nextPage;
         this.previousPage = previousPage;
 
@@ -52,72 +57,24 @@ public class ImageSearchResults {
         }
         this.offset = offset;
 
-        this.V1_DATE_FORMAT = (SimpleDateFormat)APIVersionTranslator.V1_DATE_FORMAT.clone();
-
-        this.responseItems = parseDocuments(requestedFields, responseItems);
-
-    }
-
-    private SolrDocumentList parseDocuments(String[] requestedFields, SolrDocumentList response_items) {
-        SolrDocumentList processedDocs = new SolrDocumentList();
-        SolrDocument current = null;
-
-        for (SolrDocument response_item : response_items) {
-            SolrDocument newDocument = new SolrDocument();
-            current = response_item;
-            Set<String> keyNames = current.keySet();
-            for (String key : keyNames) {
-                if(isRequestedField(requestedFields, APIVersionTranslator.v2Tov1(key))){
-                    switch (key) {
-                        case V2_SAFE:
-                            newDocument.addField(APIVersionTranslator.v2Tov1(V2_SAFE), 1.0f - (float) current.getFieldValue(V2_SAFE));
-                            break;
-                        case V2_PAGETSTAMP:
-                            newDocument.addField(APIVersionTranslator.v2Tov1(V2_PAGETSTAMP), this.V1_DATE_FORMAT.format(current.getFieldValue(V2_PAGETSTAMP)));
-                            break;
-                        case V2_IMAGETSTAMP:
-                            newDocument.addField(APIVersionTranslator.v2Tov1(V2_IMAGETSTAMP), this.V1_DATE_FORMAT.format(current.getFieldValue(V2_IMAGETSTAMP)));
-                            break;
-                        default:
-                            newDocument.addField(APIVersionTranslator.v2Tov1(key), current.getFieldValue(key));
-                            break;
-                    }
-                }
-            }
-
-            String V1_IMAGELINKTOARCHIVE = APIVersionTranslator.v2Tov1(V2_IMAGELINKTOARCHIVE);
-
-            if (isRequestedField(requestedFields,V1_IMAGELINKTOARCHIVE)) {
-                String tstamp = this.V1_DATE_FORMAT.format(current.getFieldValue(V2_IMAGETSTAMP));
-                String url = current.getFieldValue(V2_IMAGEURL).toString();
-                newDocument.addField(V1_IMAGELINKTOARCHIVE, V2_WAYBACKADDRESS + tstamp + "im_/" + url);
-            }
-
-            String V1_PAGELINKTOARCHIVE = APIVersionTranslator.v2Tov1(V2_PAGELINKTOARCHIVE);
-
-            if (isRequestedField(requestedFields, V1_PAGELINKTOARCHIVE)) {
-                String tstamp = this.V1_DATE_FORMAT.format(current.getFieldValue(V2_PAGETSTAMP));
-                String url = current.getFieldValue(V2_PAGEURL).toString();
-                newDocument.addField(V1_PAGELINKTOARCHIVE, V2_WAYBACKADDRESS + tstamp + "/" + url);
-            }
-
-            processedDocs.add(newDocument);
-        }
-        return processedDocs;
+        this.fields = fields;
+        this.thumbnailURL = thumbnailURL;
+        this.responseItems = responseItems;
     }
 
-    private Boolean isRequestedField(String[] requestedFields, String field){
-        if (this.fieldReturnability.get(field)==null){
-            Boolean r = false;
-            for (String f:requestedFields){
-                if (f.equals(field)){
-                    r = true;
-                    break;
-                }
-            }
-            fieldReturnability.put(field, r);
-            return r;
+    /**
+     * Writes each document in its V1 form straight from the compact Solr results, so no intermediate
+     * document list is built.
+     *
+     * @param out  - writer positioned where the responseItems array is expected
+     * @param gson - used to serialize field values that are not plain strings, numbers or booleans
+     */
+    void writeResponseItems(JsonWriter out, Gson gson) throws IOException {
+        List<Object[]> documents = responseItems.getDocuments();
+        out.beginArray();
+        for (int i = 0; i < documents.size(); i++) {
+            docIds.add(fields.write(out, gson, documents.get(i), responseItems.getFieldOrder(i), thumbnailURL));
         }
-        return this.fieldReturnability.get(field);
+        out.endArray();
     }
 }
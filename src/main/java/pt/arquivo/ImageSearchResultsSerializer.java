@@ -0,0 +1,67 @@
+package pt.arquivo;
+
+import java.io.IOException;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Gson adapter that streams {@link ImageSearchResults} straight to the output, translating documents as they are written.
+ * Fields are written in the order Gson's reflective serialization used, so responses stay byte-for-byte the same.
+ */
+public class ImageSearchResultsSerializer implements TypeAdapterFactory {
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+        if (!ImageSearchResults.class.isAssignableFrom(type.getRawType())) {
+            return null;
+        }
+        return (TypeAdapter<T>) new Adapter(gson);
+    }
+
+    private static class Adapter extends TypeAdapter<ImageSearchResults> {
+        private final Gson gson;
+
+        Adapter(Gson gson) {
+            this.gson = gson;
+        }
+
+        @Override
+        public void write(JsonWriter out, ImageSearchResults results) throws IOException {
+            if (results == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("serviceName").value(results.serviceName);
+            out.name("linkToService").value(results.linkToService);
+            out.name("linkToDocumentation").value(results.linkToDocumentation);
+            out.name("linkToMoreFields").value(results.linkToMoreFields);
+            out.name("nextPage").value(results.nextPage);
+            out.name("previousPage").value(results.previousPage);
+            out.name("totalItems").value(results.totalItems);
+            out.name("numberOfResponseItems").value(results.numberOfResponseItems);
+            out.name("offset").value(results.offset);
+            // Gson always rendered the field lookup table as an empty object, clients may expect it to be there
+            out.name("fieldReturnability").beginObject().endObject();
+            out.name("responseItems");
+            results.writeResponseItems(out, gson);
+            // only there when asked for, so other responses do not change
+            if (results.facets != null) {
+                out.name("facets");
+                gson.toJson(results.facets, results.facets.getClass(), out);
+            }
+            out.endObject();
+        }
+
+        @Override
+        public ImageSearchResults read(JsonReader in) {
+            throw new UnsupportedOperationException("ImageSearchResults is write only");
+        }
+    }
+}
@@ -2,39 +2,67 @@ package pt.arquivo;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrQuery;
-import org.apache.solr.client.solrj.impl.CloudSolrClient;
-import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.client.solrj.util.ClientUtils;
-import org.apache.solr.common.SolrDocument;
-import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.apache.solr.common.util.NamedList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import pt.arquivo.metrics.ImageSearchMetrics;
+import pt.arquivo.metrics.ImageSearchMetrics.Filter;
+import pt.arquivo.metrics.ImageSearchMetrics.Stage;
+import pt.arquivo.responses.ImageFacetsResponse;
 import pt.arquivo.responses.ImageSearchErrorResponse;
 import pt.arquivo.responses.ImageSearchResponseDebug;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.time.Year;
+import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
-import static pt.arquivo.APIVersionTranslator.V1_DATE_FORMAT;
 import static pt.arquivo.ImageSearchResults.V2_IMAGEURL;
 import static pt.arquivo.ImageSearchResults.V2_IMAGETSTAMP;
-import static pt.arquivo.ImageSearchResults.V2_PAGEURL;
-import static pt.arquivo.ImageSearchResults.V2_PAGETSTAMP;
 
 /**
  * ImageSearch API Back-End.
@@ -46,23 +74,88 @@ import static pt.arquivo.ImageSearchResults.V2_PAGETSTAMP;
 public class ImageSearchServlet extends HttpServlet {
     // SolrClient is thread safe, meaning that it can be shared among all requests
     private SolrClient solr;
+    // HTTP connections used by the Solr client
+    private SolrConnectionPool solrConnectionPool;
+    // Search log, written by a background thread
+    private SearchEventLog searchEventLog;
+    // Solr access layer, caches repeated queries
+    private SolrQueryExecutor solrExecutor;
+    // Async mode: bounded pool running the Solr calls, null when requests are answered on the container thread
+    private ThreadPoolExecutor asyncExecutor;
+    private long asyncTimeoutMillis;
+    // Response compression, negotiated on Accept-Encoding
+    private boolean compressionEnabled;
+    private int compressionMinBytes;
+    private int compressionLevel;
+    // Conditional GET: cached index version used in the ETags, null when they are disabled
+    private IndexVersionTracker indexVersionTracker;
+    private String cacheControl;
+    // Negative filter of the spam domains, null when disabled
+    private SpamFilter spamFilter;
+    // Per client rate limits and concurrency limit of the searches
+    private AdmissionController admissionController;
+    // Batch searches: bounded pool running the queries of a POST in parallel
+    private ThreadPoolExecutor batchExecutor;
+    private int batchMaxQueries;
+    private long batchMaxBodyBytes;
+    private long batchTimeoutMillis;
+    // Thumbnail endpoint, decoded images by imgDigest
+    private ThumbnailStore thumbnailStore;
+    private String thumbnailCacheControl;
+    private boolean thumbnailsAsUrls;
+    // Lookup endpoint, images by imgDigest
+    private ImageLookup imageLookup;
+    private int lookupMaxDigests;
+    // Export endpoint, every result of a search as NDJSON
+    private ImageExport imageExport;
+    private long exportRetryAfterSeconds;
+    // Facets, with the results or on their own, and those of the whole index
+    private ImageFacets imageFacets;
     private static final long serialVersionUID = 1L;
     private static final Logger LOG = LoggerFactory.getLogger(ImageSearchServlet.class);
     private static String collectionsHost = null;
     private static String solrHost = null;
     private static String solrCollection = null;
-    Calendar DATE_END = new GregorianCalendar();
     private static final String V1_DEFAULT_FL_STRING = "imgDigest,imgSrc,imgMimeType,imgHeight,imgWidth,imgTstamp,imgTitle,imgAlt,imgCaption,pageURL,pageTstamp,pageTitle,collection,imgLinkToArchive,pageLinkToArchive";
     private static final String V1_MOREFIELDS = "pageHost,matchingImages,safe";
+    // Set to true on responses built from an expired cached Solr response
+    static final String STALE_HEADER = "X-Image-Search-Stale";
+    // Solr uniqueKey
+    private static final String V2_ID = "id";
+    // path of the thumbnail endpoint, followed by the imgDigest
+    static final String THUMBNAIL_PATH = "/thumbnail/";
+    // path of the lookup endpoint, with the imgDigest parameter
+    static final String LOOKUP_PATH = "/image";
+    // path of the export endpoint, with the search parameters
+    static final String EXPORT_PATH = "/export";
+    // path of the facets endpoint, with the search parameters
+    static final String FACETS_PATH = "/facets";
+
+    // Gson instances are thread safe, build them once instead of on every request
+    static final Gson GSON = new GsonBuilder().disableHtmlEscaping()
+            .registerTypeAdapterFactory(new ImageSearchResultsSerializer()).create();
+    static final Gson GSON_PRETTY = new GsonBuilder().disableHtmlEscaping().setPrettyPrinting()
+            .registerTypeAdapterFactory(new ImageSearchResultsSerializer()).create();
+
+    // Filters that do not depend on the request
+    private static final String SAFE_FILTER = "safe:[0 TO 0.49]";
+    private static final List<String> BLOCK_FILTERS = Collections.unmodifiableList(Arrays.asList("blocked:0", "isInline:false"));
+    // size parameter values, also the size facet buckets
+    static final Map<String, String> SIZE_FILTERS;
+    static {
+        Map<String, String> sizeFilters = new LinkedHashMap<>();
+        sizeFilters.put("sm", "{!frange u=65536 }product(imgHeight,imgWidth)"); /*images up to 65536pixels² of area - i.e. max square size of 256x256px*/
+        sizeFilters.put("md", "{!frange l=65537 u=810000 }product(imgHeight,imgWidth)"); /*images between 65537pixels² of area , up to  810000px² of area - i.e. max square size of 900x900px*/
+        sizeFilters.put("lg", "{!frange l=810001}product(imgHeight,imgWidth)"); /*images bigger than 810000px² of area*/
+        SIZE_FILTERS = Collections.unmodifiableMap(sizeFilters);
+    }
+    // sent as a single filter when present, see FilterPlanner
+    private static final Set<String> STATIC_FILTERS = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(
+            SAFE_FILTER, "blocked:0", "isInline:false")));
 
-    private static final Map<String, Integer> DEFAULT_QUERY_FIELDS = new HashMap<String, Integer>() {{
-        put("imgTitle", 4);
-        put("imgAlt", 3);
-        put("imgCaption", 3);
-        put("imgUrlTokens", 2);
-        put("pageTitle", 1);
-        put("pageUrlTokens", 1);
-    }};
+    // Scoring parameters by profile name, replaced by the configured ones on init
+    private Map<String, RankingProfile> rankingProfiles = Collections.singletonMap(RankingProfile.DEFAULT_NAME, RankingProfile.DEFAULT);
+    private RankingProfile defaultRankingProfile = RankingProfile.DEFAULT;
 
     /**
      * HttpServlet init method.
@@ -85,8 +178,110 @@ public class ImageSearchServlet extends HttpServlet {
             throw new ServletException("ERROR solrCollection in Web.xml");
         }
 
-        solr = createSolr(solrHost, solrCollection);
+        rankingProfiles = RankingProfile.load();
+        String defaultProfileName = ImageSearchProperties.get("defaultRankingProfile");
+        if (defaultProfileName != null && rankingProfiles.containsKey(defaultProfileName.trim())) {
+            defaultRankingProfile = rankingProfiles.get(defaultProfileName.trim());
+        }
+
+        searchEventLog = new SearchEventLog(
+                ImageSearchProperties.getInt("searchEventLogCapacity", 8192),
+                ImageSearchProperties.getInt("searchEventLogBatchSize", 256));
+
+        solrConnectionPool = new SolrConnectionPool();
+        solr = solrConnectionPool.createClient(solrHost, solrCollection);
+        solrExecutor = new SolrQueryExecutor(solr,
+                solrConnectionPool.createReplicaClients(ImageSearchProperties.get("solrHedgeServers"), solrCollection));
+
+        compressionEnabled = ImageSearchProperties.getBoolean("compressionEnabled", true);
+        compressionMinBytes = ImageSearchProperties.getInt("compressionMinBytes", 1024);
+        compressionLevel = Math.max(1, Math.min(9, ImageSearchProperties.getInt("compressionLevel", 6)));
+
+        cacheControl = ImageSearchProperties.get("cacheControl") != null ? ImageSearchProperties.get("cacheControl") : "public, max-age=300";
+        if (ImageSearchProperties.getBoolean("etagEnabled", true)) {
+            String indexVersionField = ImageSearchProperties.get("indexVersionField");
+            indexVersionTracker = new IndexVersionTracker(solr, indexVersionField != null ? indexVersionField : "_version_",
+                    ImageSearchProperties.getLong("indexVersionPollSeconds", 60) * 1000,
+                    // cached results belong to the previous index
+                    solrExecutor::clearCaches);
+        }
+
+        admissionController = new AdmissionController();
+
+        if (ImageSearchProperties.getBoolean("spamFilterEnabled", true)) {
+            spamFilter = new SpamFilter(ImageSearchProperties.get("spamListFile"),
+                    ImageSearchProperties.getLong("spamListReloadSeconds", 60));
+        }
+
+        // the same single filter safeSearch=off searches send, one filterCache entry for both
+        thumbnailStore = new ThumbnailStore(solrExecutor, FilterPlanner.plan(BLOCK_FILTERS, STATIC_FILTERS));
+        thumbnailCacheControl = ImageSearchProperties.get("thumbnailCacheControl") != null
+                ? ImageSearchProperties.get("thumbnailCacheControl") : "public, max-age=2592000, immutable";
+        thumbnailsAsUrls = ImageSearchProperties.getBoolean("thumbnailsAsUrls", false);
+
+        imageLookup = new ImageLookup(solrExecutor, admissionController);
+        lookupMaxDigests = ImageSearchProperties.getInt("imageLookupMaxDigests", 100);
+
+        imageExport = new ImageExport(solr);
+        exportRetryAfterSeconds = ImageSearchProperties.getLong("exportRetryAfterSeconds", 30);
+
+        batchExecutor = createExecutor("imagesearch-batch-",
+                ImageSearchProperties.getInt("batchThreads", 32),
+                ImageSearchProperties.getInt("batchQueueSize", 512));
+        batchMaxQueries = ImageSearchProperties.getInt("batchMaxQueries", 50);
+        batchMaxBodyBytes = ImageSearchProperties.getLong("batchMaxBodyBytes", 1024 * 1024);
+        batchTimeoutMillis = ImageSearchProperties.getLong("batchTimeoutMillis", 10000);
+
+        if (ImageSearchProperties.getBoolean("asyncEnabled", false)) {
+            asyncExecutor = createExecutor("imagesearch-solr-",
+                    ImageSearchProperties.getInt("asyncThreads", 64),
+                    ImageSearchProperties.getInt("asyncQueueSize", 256));
+            asyncTimeoutMillis = ImageSearchProperties.getLong("asyncTimeoutMillis", 10000);
+            LOG.info("[init] Async mode enabled with " + asyncExecutor.getMaximumPoolSize() + " threads");
+        }
 
+        // last, the first refresh parses a search in the background
+        imageFacets = new ImageFacets(solr, this::globalFacetQuery,
+                ImageSearchProperties.getLong("facetsGlobalRefreshSeconds", 3600));
+    }
+
+    @Override
+    public void destroy() {
+        if (asyncExecutor != null) {
+            asyncExecutor.shutdown();
+        }
+        batchExecutor.shutdownNow();
+        solrExecutor.close();
+        admissionController.close();
+        thumbnailStore.close();
+        imageLookup.close();
+        imageExport.close();
+        imageFacets.close();
+        if (spamFilter != null) {
+            spamFilter.close();
+        }
+        if (indexVersionTracker != null) {
+            indexVersionTracker.close();
+        }
+        try {
+            solr.close();
+        } catch (IOException e) {
+            LOG.error("[destroy] Error closing the Solr client", e);
+        }
+        solrConnectionPool.close();
+        searchEventLog.close();
+    }
+
+    private ThreadPoolExecutor createExecutor(String threadPrefix, int threads, int queueSize) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), runnable -> {
+                    Thread thread = new Thread(runnable, threadPrefix + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
 
@@ -98,110 +293,666 @@ public class ImageSearchServlet extends HttpServlet {
      */
     public void doGet(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
-        long startTime;
-        long endTime;
-        long duration;
-        startTime = System.currentTimeMillis();
+        String path = request.getPathInfo();
+        if (path != null && path.startsWith(THUMBNAIL_PATH)) {
+            writeThumbnail(path.substring(THUMBNAIL_PATH.length()), request, response);
+            return;
+        }
+        if (LOOKUP_PATH.equals(path)) {
+            lookup(request, response);
+            return;
+        }
+        if (EXPORT_PATH.equals(path)) {
+            export(request, response);
+            return;
+        }
+        if (FACETS_PATH.equals(path)) {
+            facets(request, response);
+            return;
+        }
+
+        ImageSearchRequest searchRequest = new ImageSearchRequest(System.currentTimeMillis());
+        ImageSearchMetrics.requestReceived();
+
+        LOG.debug("[doGet] query request from {}", request.getRemoteAddr());
+
+        searchRequest.baseURL = getBaseURL(request);
+        searchRequest.requestURL = searchRequest.baseURL +
+                (request.getQueryString() != null ? "?" + request.getQueryString() : "");
+        searchRequest.thumbnailURL = getServiceURL(request) + THUMBNAIL_PATH;
+        LOG.debug("[imagesearch request] : {}", searchRequest.requestURL);
+        identifyClient(searchRequest, request);
+
+        // the answered search goes to the search event log, see writeResponse
+        LOG.debug("request\t{}\t{}\t{}", searchRequest.ipAddress, searchRequest.userAgent, searchRequest.requestURL);
+
+        addCorsHeaders(response);
 
-        LOG.debug("[doGet] query request from " + request.getRemoteAddr());
+        searchRequest.acceptsGzip = compressionEnabled && GzipResponseOutputStream.acceptsGzip(request.getHeader("Accept-Encoding"));
 
+        // get parameters from request
+        request.setCharacterEncoding("UTF-8");
+        searchRequest.parameters = request.getParameterMap();
+        long parseStart = System.nanoTime();
+        parseParameters(searchRequest);
+        Stage.PARSE.record(System.nanoTime() - parseStart);
+
+        // debug responses carry timings, so they are never the same twice
+        String indexVersion = indexVersionTracker != null && !searchRequest.debug ? indexVersionTracker.getVersion() : null;
+        if (indexVersion != null) {
+            searchRequest.etag = etag(searchRequest, indexVersion);
+            if (matchesETag(request.getHeader("If-None-Match"), searchRequest.etag)) {
+                writeNotModified(searchRequest, response);
+                return;
+            }
+        }
+
+        if (asyncExecutor != null && request.isAsyncSupported()) {
+            searchAsync(searchRequest, request);
+            return;
+        }
+
+        Object imgSearchResponse = search(searchRequest);
+        writeResponse(searchRequest, imgSearchResponse, searchRequest.status, response);
+    }
+
+    /**
+     * Batch search: the body is a JSON array of parameter sets, each one the parameters of a GET search, e.g.
+     * [{"q": "lisboa", "maxItems": 10}, {"q": "porto", "type": ["png"]}]. The queries run in parallel and the
+     * response is a JSON array with the body each GET search would have returned, in the same order, errors
+     * included, so the whole batch takes about as long as its slowest query.
+     *
+     * @param request  - type HttpServletRequest
+     * @param response - type HttpServletResponse
+     */
+    public void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        ImageSearchRequest batchRequest = new ImageSearchRequest(System.currentTimeMillis());
+        String baseURL = getBaseURL(request);
+        String thumbnailURL = getServiceURL(request) + THUMBNAIL_PATH;
+        batchRequest.requestURL = baseURL;
+        identifyClient(batchRequest, request);
+        batchRequest.parameters = Collections.emptyMap();
+        LOG.debug("[doPost] batch request from {}", batchRequest.ipAddress);
+
+        addCorsHeaders(response);
+        batchRequest.acceptsGzip = compressionEnabled && GzipResponseOutputStream.acceptsGzip(request.getHeader("Accept-Encoding"));
+
+        // the body is parsed whole, so its size is checked before and while reading it
+        if (request.getContentLengthLong() > batchMaxBodyBytes) {
+            writeResponse(batchRequest, new ImageSearchErrorResponse(new IllegalArgumentException("The body takes at most " + batchMaxBodyBytes + " bytes")),
+                    HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, response);
+            return;
+        }
+        BoundedInputStream bodyStream = new BoundedInputStream(request.getInputStream(), batchMaxBodyBytes);
+        JsonArray parameterSets;
+        try {
+            JsonElement body = new JsonParser().parse(new InputStreamReader(bodyStream, StandardCharsets.UTF_8));
+            if (!body.isJsonArray()) {
+                throw new IllegalArgumentException("The body must be a JSON array of parameter sets");
+            }
+            parameterSets = body.getAsJsonArray();
+            if (parameterSets.size() > batchMaxQueries) {
+                throw new IllegalArgumentException("A batch takes at most " + batchMaxQueries + " queries");
+            }
+        } catch (JsonParseException | IllegalArgumentException | IllegalStateException e) {
+            writeResponse(batchRequest, new ImageSearchErrorResponse(e), bodyStream.isExceeded()
+                    ? HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE : HttpServletResponse.SC_BAD_REQUEST, response);
+            return;
+        }
+        ImageSearchMetrics.batchReceived(parameterSets.size());
+
+        List<ImageSearchRequest> searchRequests = new ArrayList<>(parameterSets.size());
+        List<Future<Object>> searches = new ArrayList<>(parameterSets.size());
+        for (JsonElement parameterSet : parameterSets) {
+            ImageSearchRequest searchRequest = new ImageSearchRequest(System.currentTimeMillis());
+            ImageSearchMetrics.requestReceived();
+            searchRequest.ipAddress = batchRequest.ipAddress;
+            searchRequest.clientKey = batchRequest.clientKey;
+            searchRequest.userAgent = batchRequest.userAgent;
+            searchRequest.thumbnailURL = thumbnailURL;
+            searchRequest.baseURL = baseURL;
+            searchRequests.add(searchRequest);
+            try {
+                searchRequest.parameters = toParameters(parameterSet);
+                // the paging links of each result are built from the URL of the equivalent GET
+                searchRequest.requestURL = baseURL + "?" + toQueryString(searchRequest.parameters);
+                long parseStart = System.nanoTime();
+                parseParameters(searchRequest);
+                Stage.PARSE.record(System.nanoTime() - parseStart);
+                searches.add(batchExecutor.submit(() -> search(searchRequest)));
+            } catch (IllegalArgumentException e) {
+                searchRequest.requestURL = baseURL;
+                searchRequest.status = HttpServletResponse.SC_BAD_REQUEST;
+                searches.add(CompletableFuture.completedFuture(new ImageSearchErrorResponse(e)));
+            } catch (RejectedExecutionException e) {
+                ImageSearchMetrics.error(e);
+                searchRequest.status = HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+                searches.add(CompletableFuture.completedFuture(new ImageSearchErrorResponse(e)));
+            }
+        }
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        if (compressionEnabled) {
+            response.addHeader("Vary", "Accept-Encoding");
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchTimeoutMillis);
+        long bytes;
+        try {
+            bytes = writeBody(response, batchRequest.acceptsGzip, out -> {
+                // each result is serialized on its own first, so a malformed document turns into an error item
+                // instead of breaking the array
+                StringWriter item = new StringWriter();
+                out.write('[');
+                for (int i = 0; i < searches.size(); i++) {
+                    ImageSearchRequest searchRequest = searchRequests.get(i);
+                    Object result = awaitSearch(searchRequest, searches.get(i), deadline);
+                    item.getBuffer().setLength(0);
+                    try {
+                        GSON.toJson(result, result.getClass(), GSON.newJsonWriter(item));
+                    } catch (RuntimeException e) {
+                        LOG.error(e.getClass().getCanonicalName(), e);
+                        ImageSearchMetrics.error(e);
+                        searchRequest.status = 500;
+                        result = new ImageSearchErrorResponse(e);
+                        item.getBuffer().setLength(0);
+                        GSON.toJson(result, result.getClass(), GSON.newJsonWriter(item));
+                    }
+                    if (i > 0) {
+                        out.write(',');
+                    }
+                    out.append(item.getBuffer());
+                    out.flush();
+                    searchEventLog.log(searchRequest, searchRequest.status,
+                            System.currentTimeMillis() - searchRequest.startTime, docIds(result));
+                }
+                out.write(']');
+            });
+        } finally {
+            // whatever is left when the client went away
+            for (Future<Object> search : searches) {
+                search.cancel(true);
+            }
+        }
+        ImageSearchMetrics.responseWritten(bytes);
+        Stage.REQUEST.record(System.nanoTime() - batchRequest.startNanos);
+    }
+
+    /**
+     * @return the result of the search, or an error response if it failed to finish before the deadline
+     */
+    private Object awaitSearch(ImageSearchRequest searchRequest, Future<Object> search, long deadline) {
+        try {
+            return search.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            search.cancel(true);
+            TimeoutException timeout = new TimeoutException("Search took longer than " + batchTimeoutMillis + "ms");
+            LOG.error(timeout.getClass().getCanonicalName(), timeout);
+            ImageSearchMetrics.error(timeout);
+            searchRequest.status = HttpServletResponse.SC_GATEWAY_TIMEOUT;
+            return new ImageSearchErrorResponse(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            searchRequest.status = HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+            return new ImageSearchErrorResponse(e);
+        } catch (ExecutionException e) {
+            // search catches everything itself
+            searchRequest.status = 500;
+            return new ImageSearchErrorResponse(e.getCause());
+        }
+    }
+
+    /**
+     * @param parameterSet - JSON object with the parameters of one search, values can be strings, numbers,
+     *                     booleans or arrays of them
+     * @return the parameters as the servlet API gives them
+     */
+    static Map<String, String[]> toParameters(JsonElement parameterSet) {
+        if (!parameterSet.isJsonObject()) {
+            throw new IllegalArgumentException("Each query of a batch must be a JSON object of parameters");
+        }
+        Map<String, String[]> parameters = new LinkedHashMap<>();
+        for (Map.Entry<String, JsonElement> parameter : parameterSet.getAsJsonObject().entrySet()) {
+            JsonElement value = parameter.getValue();
+            if (value.isJsonNull()) {
+                continue;
+            }
+            if (value.isJsonArray()) {
+                JsonArray array = value.getAsJsonArray();
+                String[] values = new String[array.size()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = toParameterValue(parameter.getKey(), array.get(i));
+                }
+                parameters.put(parameter.getKey(), values);
+            } else {
+                parameters.put(parameter.getKey(), new String[]{toParameterValue(parameter.getKey(), value)});
+            }
+        }
+        return parameters;
+    }
+
+    private static String toParameterValue(String name, JsonElement value) {
+        if (!value.isJsonPrimitive()) {
+            throw new IllegalArgumentException("Parameter " + name + " must be a string, number or boolean");
+        }
+        return value.getAsString();
+    }
+
+    private static String toQueryString(Map<String, String[]> parameters) throws UnsupportedEncodingException {
+        StringBuilder queryString = new StringBuilder();
+        for (Map.Entry<String, String[]> parameter : parameters.entrySet()) {
+            for (String value : parameter.getValue()) {
+                if (queryString.length() > 0) {
+                    queryString.append('&');
+                }
+                queryString.append(URLEncoder.encode(parameter.getKey(), "UTF-8")).append('=').append(URLEncoder.encode(value, "UTF-8"));
+            }
+        }
+        return queryString.toString();
+    }
+
+    /**
+     * @param searchRequest - parsed search
+     * @param name          - offset or cursor
+     * @param value         - where the page starts
+     * @return URL of another page of the same search, its parameters without those of the current page
+     */
+    private static String pageLink(ImageSearchRequest searchRequest, String name, String value) throws UnsupportedEncodingException {
+        Map<String, String[]> parameters = new LinkedHashMap<>(searchRequest.parameters);
+        parameters.remove("offset");
+        parameters.remove("cursor");
+        String queryString = toQueryString(parameters);
+        return searchRequest.baseURL + "?" + (queryString.isEmpty() ? "" : queryString + "&")
+                + name + "=" + URLEncoder.encode(value, "UTF-8");
+    }
+
+    /**
+     * Thumbnail endpoint, /thumbnail/{imgDigest}: the decoded thumbnail of an image, see {@link ThumbnailStore}.
+     * A digest always names the same image, so the response can be cached for long and revalidated by the digest.
+     *
+     * @param digest   - imgDigest of the image, from the path already percent-decoded by the container
+     * @param request  - type HttpServletRequest
+     * @param response - type HttpServletResponse
+     */
+    private void writeThumbnail(String digest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        ImageSearchMetrics.requestReceived();
+        addCorsHeaders(response);
+        String etag = "\"" + digest + "\"";
+        if (matchesETag(request.getHeader("If-None-Match"), etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            response.setHeader("ETag", etag);
+            response.setHeader("Cache-Control", thumbnailCacheControl);
+            ImageSearchMetrics.notModified();
+            return;
+        }
+
+        boolean valid = ThumbnailStore.isServable(digest);
+        ThumbnailStore.Thumbnail thumbnail = valid ? thumbnailStore.getCached(digest) : null;
+        if (valid && thumbnail == null) {
+            // only the thumbnails missing from the cache reach Solr
+            try {
+                admissionController.admit(admissionController.clientKey(request.getHeader("X-FORWARDED-FOR"), request.getRemoteAddr()),
+                        AdmissionController.THUMBNAIL_COST);
+            } catch (AdmissionController.RejectedException e) {
+                LOG.debug("Thumbnail rejected: {}", e.getMessage());
+                response.setHeader("Retry-After", String.valueOf(e.getRetryAfterSeconds()));
+                writeThumbnailError(response, 429, e);
+                return;
+            }
+            try {
+                thumbnail = thumbnailStore.fetch(digest);
+            } catch (SolrCircuitBreaker.OpenException e) {
+                // no error log, the breaker logged why it opened
+                ImageSearchMetrics.error(e);
+                response.setHeader("Retry-After", String.valueOf(e.getRetryAfterSeconds()));
+                writeThumbnailError(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, e);
+                return;
+            } catch (SolrServerException | IOException | RuntimeException e) {
+                LOG.error(e.getClass().getCanonicalName(), e);
+                ImageSearchMetrics.error(e);
+                writeThumbnailError(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, e);
+                return;
+            } finally {
+                admissionController.release();
+            }
+        }
+        if (thumbnail == null) {
+            writeThumbnailError(response, HttpServletResponse.SC_NOT_FOUND, new NoSuchElementException("No thumbnail for imgDigest " + digest));
+            return;
+        }
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(thumbnail.contentType);
+        response.setContentLength(thumbnail.bytes.length);
+        response.setHeader("ETag", etag);
+        response.setHeader("Cache-Control", thumbnailCacheControl);
+        response.getOutputStream().write(thumbnail.bytes);
+        ImageSearchMetrics.responseWritten(thumbnail.bytes.length);
+    }
+
+    /**
+     * Writes the JSON error of the thumbnail endpoint, whose successful responses are images
+     */
+    private void writeThumbnailError(HttpServletResponse response, int status, Exception e) throws IOException {
+        response.setStatus(status);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        ImageSearchMetrics.responseWritten(writeJson(response, GSON, new ImageSearchErrorResponse(e), false));
+    }
+
+    /**
+     * Request to one of the endpoints other than the search, with its parameters, taking the same common ones
+     *
+     * @param request  - type HttpServletRequest
+     * @param response - type HttpServletResponse, CORS headers are added to it
+     */
+    private ImageSearchRequest endpointRequest(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        ImageSearchRequest endpointRequest = new ImageSearchRequest(System.currentTimeMillis());
+        ImageSearchMetrics.requestReceived();
+        endpointRequest.requestURL = getBaseURL(request) +
+                (request.getQueryString() != null ? "?" + request.getQueryString() : "");
+        endpointRequest.thumbnailURL = getServiceURL(request) + THUMBNAIL_PATH;
+        identifyClient(endpointRequest, request);
+        addCorsHeaders(response);
+        endpointRequest.acceptsGzip = compressionEnabled && GzipResponseOutputStream.acceptsGzip(request.getHeader("Accept-Encoding"));
+
+        request.setCharacterEncoding("UTF-8");
+        endpointRequest.parameters = request.getParameterMap();
+        return endpointRequest;
+    }
+
+    /**
+     * Facets endpoint, /facets?...: the counts per collection, type, size, year and site of the images matching a
+     * search, with the same parameters as a search, for the facets listed in the facets parameter or all of them.
+     * Searches can also ask for them with their results, see {@link ImageFacets}.
+     *
+     * @param request  - type HttpServletRequest
+     * @param response - type HttpServletResponse
+     */
+    private void facets(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        ImageSearchRequest facetsRequest = endpointRequest(request, response);
+        parseParameters(facetsRequest);
+        Set<String> names = ImageFacets.parseNames(facetsRequest.getParameter("facets"));
+        SolrQuery facetQuery = ImageFacets.facetQuery(facetsRequest.solrQuery,
+                names.isEmpty() ? new LinkedHashSet<>(ImageFacets.NAMES) : names);
+
+        Object facetsResponse = imageFacets.getGlobal(facetQuery);
+        if (facetsResponse == null) {
+            try {
+                admissionController.admit(facetsRequest.clientKey, AdmissionController.cost(facetQuery));
+            } catch (AdmissionController.RejectedException e) {
+                LOG.debug("Facets rejected: {}", e.getMessage());
+                facetsRequest.retryAfterSeconds = e.getRetryAfterSeconds();
+                writeResponse(facetsRequest, new ImageSearchErrorResponse(e), 429, response);
+                return;
+            }
+            try {
+                QueryResponse responseSolr = solrExecutor.query(facetQuery);
+                facetsRequest.stale = responseSolr instanceof SolrQueryExecutor.StaleQueryResponse;
+                facetsResponse = new ImageFacetsResponse(ImageSearchProperties.get("linkToService"),
+                        responseSolr.getResults() != null ? responseSolr.getResults().getNumFound() : 0,
+                        ImageFacets.parse((NamedList<?>) responseSolr.getResponse().get("facets")));
+            } catch (SolrCircuitBreaker.OpenException e) {
+                ImageSearchMetrics.error(e);
+                facetsResponse = new ImageSearchErrorResponse(e);
+                facetsRequest.status = HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+                facetsRequest.retryAfterSeconds = e.getRetryAfterSeconds();
+            } catch (SolrServerException | IOException | RuntimeException e) {
+                LOG.error(e.getClass().getCanonicalName(), e);
+                ImageSearchMetrics.error(e);
+                facetsResponse = new ImageSearchErrorResponse(e);
+                facetsRequest.status = HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+            } finally {
+                admissionController.release();
+            }
+        }
+        writeResponse(facetsRequest, facetsResponse, facetsRequest.status, response);
+    }
+
+    /**
+     * @return the facet query of the whole index: no query, the default filters and every facet
+     */
+    private SolrQuery globalFacetQuery() {
+        ImageSearchRequest globalRequest = new ImageSearchRequest(System.currentTimeMillis());
+        globalRequest.parameters = Collections.emptyMap();
+        parseParameters(globalRequest);
+        return ImageFacets.facetQuery(globalRequest.solrQuery, new LinkedHashSet<>(ImageFacets.NAMES));
+    }
+
+    /**
+     * Lookup endpoint, /image?imgDigest=...: the images with the given digests, comma separated or repeated, in the
+     * same shape and order as search results and with the same fields, safeSearch, thumbnails and prettyPrint
+     * parameters, see {@link ImageLookup}. Digests of images that are not indexed or are filtered out are left out.
+     *
+     * @param request  - type HttpServletRequest
+     * @param response - type HttpServletResponse
+     */
+    private void lookup(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        ImageSearchRequest lookupRequest = endpointRequest(request, response);
+        lookupRequest.prettyOutput = "true".equals(lookupRequest.getParameter("prettyPrint"));
+
+        Set<String> digests = new LinkedHashSet<>();
+        String[] digestParameters = lookupRequest.parameters.get("imgDigest");
+        if (digestParameters != null) {
+            for (String digestParameter : digestParameters) {
+                for (String digest : digestParameter.split(",")) {
+                    if (!digest.trim().isEmpty()) {
+                        digests.add(digest.trim());
+                    }
+                }
+            }
+        }
+        if (digests.isEmpty() || digests.size() > lookupMaxDigests) {
+            IllegalArgumentException e = new IllegalArgumentException("A lookup takes from 1 to " + lookupMaxDigests + " imgDigest values");
+            writeResponse(lookupRequest, new ImageSearchErrorResponse(e), HttpServletResponse.SC_BAD_REQUEST, response);
+            return;
+        }
+
+        V1Fields fields = V1Fields.withDigest(parseFields(lookupRequest));
         ArrayList<String> fqStrings = new ArrayList<>();
-        ArrayList<Map.Entry<String, SolrQuery.ORDER>> sortStrings = new ArrayList<>();
-        String q = "";
+        parseSafeSearch(lookupRequest.getParameter("safeSearch"), fqStrings);
+        addBlockFilter(fqStrings);
+
+        Object lookupResponse;
+        int status = HttpServletResponse.SC_OK;
+        try {
+            V1DocumentList documents = imageLookup.lookup(new ArrayList<>(digests), fields, FilterPlanner.plan(fqStrings, STATIC_FILTERS), lookupRequest.clientKey);
+            String linkToMoreFields = lookupRequest.requestURL.replaceAll("&more=([^&]+)", "").concat("&more=" + V1_MOREFIELDS);
+            lookupResponse = new ImageSearchResults(fields, lookupRequest.thumbnailURL, documents.getNumFound(), documents.getDocumentCount(), 0, linkToMoreFields, "", "", documents, lookupRequest.prettyOutput);
+        } catch (AdmissionController.RejectedException e) {
+            LOG.debug("Lookup rejected: {}", e.getMessage());
+            lookupResponse = new ImageSearchErrorResponse(e);
+            status = 429;
+            lookupRequest.retryAfterSeconds = e.getRetryAfterSeconds();
+        } catch (SolrCircuitBreaker.OpenException e) {
+            // no error log, the breaker logged why it opened
+            ImageSearchMetrics.error(e);
+            lookupResponse = new ImageSearchErrorResponse(e);
+            status = HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+            lookupRequest.retryAfterSeconds = e.getRetryAfterSeconds();
+        } catch (SolrServerException | IOException | RuntimeException e) {
+            LOG.error(e.getClass().getCanonicalName(), e);
+            ImageSearchMetrics.error(e);
+            lookupResponse = new ImageSearchErrorResponse(e);
+            status = HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+        }
+        writeResponse(lookupRequest, lookupResponse, status, response);
+    }
 
-        String requestURL = request.getScheme() + "://" +
+    /**
+     * Export endpoint, /export?...: every image matching a search, with the same parameters as a search except
+     * for paging and sorting, as newline delimited JSON, one V1 document per line, see {@link ImageExport}.
+     * A failure after the first batch was sent can only end the body early, with an error object as its last line.
+     *
+     * @param request  - type HttpServletRequest
+     * @param response - type HttpServletResponse
+     */
+    private void export(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        ImageSearchRequest exportRequest = endpointRequest(request, response);
+        parseParameters(exportRequest);
+
+        if (!imageExport.tryStart()) {
+            exportRequest.retryAfterSeconds = exportRetryAfterSeconds;
+            RejectedExecutionException e = new RejectedExecutionException("Too many exports running, try again later");
+            writeResponse(exportRequest, new ImageSearchErrorResponse(e), 429, response);
+            return;
+        }
+        try {
+            ImageExport.Batch first;
+            try {
+                first = imageExport.first(exportRequest.solrQuery, exportRequest.fields);
+            } catch (SolrServerException | IOException | RuntimeException e) {
+                LOG.error(e.getClass().getCanonicalName(), e);
+                ImageSearchMetrics.error(e);
+                writeResponse(exportRequest, new ImageSearchErrorResponse(e), HttpServletResponse.SC_SERVICE_UNAVAILABLE, response);
+                return;
+            }
+
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType("application/x-ndjson");
+            response.setCharacterEncoding("UTF-8");
+            if (compressionEnabled) {
+                response.addHeader("Vary", "Accept-Encoding");
+            }
+            // every line already ends with a line break, no results is an empty body
+            long bytes = writeBody(response, exportRequest.acceptsGzip, false, out -> {
+                try {
+                    imageExport.write(first, out, GSON, exportRequest.thumbnailURL);
+                } catch (ImageExport.BatchException | RuntimeException e) {
+                    // the status is already sent, the error ends the body instead
+                    Throwable error = e instanceof ImageExport.BatchException ? e.getCause() : e;
+                    LOG.error(error.getClass().getCanonicalName(), error);
+                    ImageSearchMetrics.error(error);
+                    exportRequest.status = HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+                    GSON.toJson(new ImageSearchErrorResponse(error), ImageSearchErrorResponse.class, GSON.newJsonWriter(out));
+                    out.write('\n');
+                }
+            });
+            ImageSearchMetrics.responseWritten(bytes);
+            searchEventLog.log(exportRequest, exportRequest.status,
+                    System.currentTimeMillis() - exportRequest.startTime, Collections.<String>emptyList());
+        } finally {
+            imageExport.finish();
+        }
+    }
+
+    /**
+     * Preflight of cross origin requests, needed by the JSON POST of the batch search
+     */
+    @Override
+    protected void doOptions(HttpServletRequest request, HttpServletResponse response) {
+        addCorsHeaders(response);
+        response.addHeader("Access-Control-Allow-Headers", "Content-Type");
+        response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+    }
+
+    private static void addCorsHeaders(HttpServletResponse response) {
+        response.addHeader("Access-Control-Allow-Origin", "*");
+        response.addHeader("Access-Control-Allow-Methods", "GET, HEAD, POST");
+    }
+
+    /**
+     * @return scheme, host, port unless it is the default one, and path of the request
+     */
+    private static String getBaseURL(HttpServletRequest request) {
+        return getHostURL(request) + request.getRequestURI();
+    }
+
+    /**
+     * @return scheme, host, port unless it is the default one, and context path of the application
+     */
+    private static String getServiceURL(HttpServletRequest request) {
+        return getHostURL(request) + request.getContextPath();
+    }
+
+    private static String getHostURL(HttpServletRequest request) {
+        return request.getScheme() + "://" +
                 request.getServerName() +
-                ("http".equals(request.getScheme()) && request.getServerPort() == 80 || "https".equals(request.getScheme()) && request.getServerPort() == 443 ? "" : ":" + request.getServerPort()) +
-                request.getRequestURI() +
-                (request.getQueryString() != null ? "?" + request.getQueryString() : "");
-        LOG.debug("[imagesearch request] : " + requestURL);
+                ("http".equals(request.getScheme()) && request.getServerPort() == 80 || "https".equals(request.getScheme()) && request.getServerPort() == 443 ? "" : ":" + request.getServerPort());
+    }
 
+    private void identifyClient(ImageSearchRequest searchRequest, HttpServletRequest request) {
         String ipAddress = request.getHeader("X-FORWARDED-FOR");
         if (ipAddress == null)
             ipAddress = request.getRemoteAddr();
+        searchRequest.ipAddress = ipAddress;
+        searchRequest.clientKey = admissionController.clientKey(request.getHeader("X-FORWARDED-FOR"), request.getRemoteAddr());
 
         String userAgent = request.getHeader("User-Agent");
-        if (userAgent == null || userAgent.trim().isEmpty())
-            userAgent = "-";
-        else {
-            userAgent = "\"" + userAgent + "\"";
-        }
-
-        LOG.info("request\t" + ipAddress + "\t" + userAgent + "\t" + requestURL);
+        if (userAgent != null && userAgent.trim().isEmpty())
+            userAgent = null;
+        searchRequest.userAgent = userAgent;
+    }
 
-        response.addHeader("Access-Control-Allow-Origin", "*");
-        response.addHeader("Access-Control-Allow-Methods", "GET, HEAD");
+    /**
+     * Turns the request parameters into the Solr query, filling in the parsed options of the search request
+     *
+     * @param searchRequest - search request with its parameters set
+     */
+    void parseParameters(ImageSearchRequest searchRequest) {
+        ArrayList<String> fqStrings = new ArrayList<>();
+        ArrayList<Map.Entry<String, SolrQuery.ORDER>> sortStrings = new ArrayList<>();
+        String q = "";
 
         int start = 0;
         int limit = 50; /*Default number of results*/
 
-        Object imgSearchResponse = null;
-        ImageSearchResults imgSearchResults = null;
-        String flString = ""; /*limit response fields*/
-        String jsonSolrResponse = "";
-
-        // get parameters from request
-        request.setCharacterEncoding("UTF-8");
-
-        q = request.getParameter("q");
+        q = searchRequest.getParameter("q");
 
         if (q == null) {
             q = "";
         }
 
         // first hit to display
-        String startString = request.getParameter("offset");
+        String startString = searchRequest.getParameter("offset");
         start = getResultsStart(startString, start);
 
+        // cursor based paging, "*" starts it, offset is ignored as Solr requires start=0 with a cursorMark
+        String cursor = searchRequest.getParameter("cursor");
+        if (cursor != null && !cursor.isEmpty()) {
+            start = 0;
+        } else {
+            cursor = null;
+        }
+
         // number of items to display
-        String limitString = request.getParameter("maxItems");
+        String limitString = searchRequest.getParameter("maxItems");
         limit = getLimit(limitString, limit);
 
-        String dateStart = request.getParameter("from");
-        String dateEnd = request.getParameter("to");
+        String dateStart = searchRequest.getParameter("from");
+        String dateEnd = searchRequest.getParameter("to");
         parseDates(dateStart, dateEnd, fqStrings);
 
-        String safeSearch = request.getParameter("safeSearch");
+        String safeSearch = searchRequest.getParameter("safeSearch");
         parseSafeSearch(safeSearch, fqStrings);
 
         addBlockFilter(fqStrings);
 
-        String typeParameter = request.getParameter("type");
+        String typeParameter = searchRequest.getParameter("type");
         parseMimeType(typeParameter, fqStrings);
+        if (typeParameter != null)
+            Filter.TYPE.increment();
 
-        String sizeParameter = request.getParameter("size");
+        String sizeParameter = searchRequest.getParameter("size");
         parseSizes(sizeParameter, fqStrings);
+        if (sizeParameter != null)
+            Filter.SIZE.increment();
 
-        if (request.getParameter("more") != null) {
-            flString += request.getParameter("more") + ",";
-        }
-
-        if (request.getParameter("fields") != null) {
-            flString += request.getParameter("fields");
-        } else { //default params
-            flString += V1_DEFAULT_FL_STRING;
-        }
+        // translated to V2 once per distinct list of fields
+        V1Fields fields = V1Fields.of(parseFields(searchRequest));
 
-        StringBuilder V2Builder = new StringBuilder();
-        for (String field : flString.split(","))
-            V2Builder.append(APIVersionTranslator.v1Tov2(field)).append(",");
-        // We always want URL and timestamp:
-        if(V2Builder.indexOf(V2_IMAGEURL) < 0)
-            V2Builder.append(V2_IMAGEURL).append(",");
-        if(V2Builder.indexOf(V2_IMAGETSTAMP) < 0)
-            V2Builder.append(V2_IMAGETSTAMP).append(",");
-        if(V2Builder.indexOf(V2_PAGEURL) < 0)
-            V2Builder.append(V2_PAGEURL).append(",");
-        if(V2Builder.indexOf(V2_PAGETSTAMP) < 0)
-            V2Builder.append(V2_PAGETSTAMP).append(",");
-            
-        String flStringV2 = V2Builder.toString();
-
-        String siteSearch = request.getParameter("siteSearch");
+        String siteSearch = searchRequest.getParameter("siteSearch");
         parseSiteFilter(siteSearch, fqStrings);
+        if (siteSearch != null)
+            Filter.SITE_SEARCH.increment();
 
-        String requestedCollection = request.getParameter("collection");
+        String requestedCollection = searchRequest.getParameter("collection");
         parseCollectionFilter(requestedCollection, fqStrings);
+        if (requestedCollection != null)
+            Filter.COLLECTION.increment();
 
         /*Process operators such as site: type: and site: inside the q parameter*/
         /*Should we allow people to use those operators when calling the api e.g.
@@ -209,70 +960,263 @@ public class ImageSearchServlet extends HttpServlet {
          * /imagesearch?q=sapo&siteSearch=sapo.pt&type=jpeg */
         q = checkSpecialOperators(q, fqStrings);
         q = checkSortOperator(q, sortStrings);
+        addSpamFilter(fqStrings);
         //Pretty print in output message
-        String prettyPrintParameter = request.getParameter("prettyPrint");
+        String prettyPrintParameter = searchRequest.getParameter("prettyPrint");
         boolean prettyOutput = false;
         if (prettyPrintParameter != null && prettyPrintParameter.equals("true"))
             prettyOutput = true;
 
+        SolrQuery solrQuery = new SolrQuery();
 
-        //execute the query
+        if (q.trim().isEmpty()) {
+            q = "*:*";
+        }
 
-        LinkedList<String> docIds = new LinkedList<>();
+        solrQuery.setQuery(q);
+        LOG.debug("FilterQuery Strings:{}", fqStrings);
 
-        try {
-            LOG.debug("Wayback HOST: " + collectionsHost);
-            LOG.debug("SOLR HOST: " + solrHost);
+        for (String fq : FilterPlanner.plan(fqStrings, STATIC_FILTERS)) {
+            solrQuery.addFilterQuery(fq);
+        }
+
+        addScoring(solrQuery, searchRequest.getParameter("rankingProfile"));
 
+        solrQuery.setRows(limit);
+        solrQuery.setStart(start);
+        solrQuery.set("fl", fields.getSolrFields());
 
-            SolrQuery solrQuery = new SolrQuery();
+        addSort(sortStrings, solrQuery);
+
+        // counted in the same request as the results
+        Set<String> facets = ImageFacets.parseNames(searchRequest.getParameter("facets"));
+        if (!facets.isEmpty()) {
+            solrQuery.set(ImageFacets.JSON_FACET, ImageFacets.jsonFacet(facets));
+        }
+
+        if (cursor != null) {
+            addCursor(cursor, solrQuery);
+        }
+
+        searchRequest.solrQuery = solrQuery;
+        searchRequest.fields = fields;
+        searchRequest.start = start;
+        searchRequest.cursor = cursor;
+        searchRequest.limit = limit;
+        searchRequest.prettyOutput = prettyOutput;
+        searchRequest.debug = "on".equals(searchRequest.getParameter("debug"));
+    }
 
-            if (q.trim().isEmpty()) {
-                q = "*:*";
+    /**
+     * @param searchRequest - search request with its parameters set
+     * @return the requested V1 fields, comma separated: "more", then "fields" or the default ones
+     */
+    private String parseFields(ImageSearchRequest searchRequest) {
+        String flString = ""; /*limit response fields*/
+
+        if (searchRequest.getParameter("more") != null) {
+            flString += searchRequest.getParameter("more") + ",";
+        }
+
+        if (searchRequest.getParameter("fields") != null) {
+            flString += searchRequest.getParameter("fields");
+        } else { //default params
+            flString += V1_DEFAULT_FL_STRING;
+        }
+
+        // thumbnails=url links each result to its thumbnail instead of carrying the base64 data
+        String thumbnails = searchRequest.getParameter("thumbnails");
+        if (thumbnails != null ? "url".equals(thumbnails) : thumbnailsAsUrls) {
+            flString = V1Fields.thumbnailsAsUrls(flString);
+        }
+        return flString;
+    }
+
+    /**
+     * Runs the search on the async executor, releasing the container thread while Solr answers
+     *
+     * @param searchRequest - parsed search request
+     * @param request       - type HttpServletRequest
+     */
+    private void searchAsync(ImageSearchRequest searchRequest, HttpServletRequest request) {
+        AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(asyncTimeoutMillis);
+        // set by whoever answers first: the search task or the timeout
+        AtomicBoolean answered = new AtomicBoolean(false);
+        // the search task, cancelled when the timeout answers first so it stops holding a thread of the pool
+        AtomicReference<Future<?>> task = new AtomicReference<>();
+        // counted down once the search task is done, answered or not
+        CountDownLatch done = new CountDownLatch(1);
+
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                if (answered.compareAndSet(false, true)) {
+                    Future<?> search = task.get();
+                    if (search != null) {
+                        search.cancel(true);
+                    }
+                    TimeoutException e = new TimeoutException("Search took longer than " + asyncTimeoutMillis + "ms");
+                    LOG.error(e.getClass().getCanonicalName(), e);
+                    ImageSearchMetrics.error(e);
+                    writeAsyncResponse(searchRequest, new ImageSearchErrorResponse(e), HttpServletResponse.SC_GATEWAY_TIMEOUT, asyncContext);
+                    return;
+                }
+                // the search task is writing its response, returning without completing would make the container
+                // error dispatch under it
+                try {
+                    if (!done.await(asyncTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                        // the client is not reading, give up on the response
+                        complete(asyncContext);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    complete(asyncContext);
+                }
             }
 
-            solrQuery.setQuery(q);
-            LOG.debug("FilterQuery Strings:" + fqStrings);
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                answered.set(true);
+                Future<?> search = task.get();
+                if (search != null) {
+                    search.cancel(true);
+                }
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
 
-            for (String fq : fqStrings) {
-                solrQuery.addFilterQuery(fq);
+        try {
+            task.set(asyncExecutor.submit(() -> {
+                try {
+                    if (answered.get()) {
+                        return; // timed out while waiting in the queue
+                    }
+                    Object imgSearchResponse = search(searchRequest);
+                    if (answered.compareAndSet(false, true)) {
+                        writeAsyncResponse(searchRequest, imgSearchResponse, searchRequest.status, asyncContext);
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            if (answered.compareAndSet(false, true)) {
+                LOG.error(e.getClass().getCanonicalName(), e);
+                ImageSearchMetrics.error(e);
+                writeAsyncResponse(searchRequest, new ImageSearchErrorResponse(e), HttpServletResponse.SC_SERVICE_UNAVAILABLE, asyncContext);
             }
+        }
+    }
 
-            addScoring(solrQuery, q);
+    private void writeAsyncResponse(ImageSearchRequest searchRequest, Object imgSearchResponse, int status, AsyncContext asyncContext) {
+        try {
+            writeResponse(searchRequest, imgSearchResponse, status, (HttpServletResponse) asyncContext.getResponse());
+        } catch (ServletException | IOException e) {
+            LOG.error(e.getClass().getCanonicalName(), e);
+        } finally {
+            complete(asyncContext);
+        }
+    }
 
-            solrQuery.setRows(limit);
-            solrQuery.setStart(start);
-            solrQuery.set("fl", flStringV2);
+    /**
+     * Completes the request, unless the timeout already gave up on it
+     */
+    private static void complete(AsyncContext asyncContext) {
+        try {
+            asyncContext.complete();
+        } catch (IllegalStateException e) {
+            LOG.debug("[complete] request already completed", e);
+        }
+    }
 
-            addSort(sortStrings, solrQuery);
+    /**
+     * Executes the Solr query and builds the object to be returned: results, debug or error response.
+     * Searches the {@link AdmissionController} turns down are answered with 429 without reaching Solr, and with the
+     * Solr circuit breaker open they get a stale cached response if there is one, or 503.
+     *
+     * @param searchRequest - parsed search request, its status is set here
+     * @return the response body
+     */
+    private Object search(ImageSearchRequest searchRequest) {
+        Object imgSearchResponse = null;
+        ImageSearchResults imgSearchResults = null;
 
-            LOG.debug("SOLR Query: " + solrQuery);
+        //execute the query
+
+        String requestURL = searchRequest.requestURL;
+        int start = searchRequest.start;
+        int limit = searchRequest.limit;
+
+        try {
+            admissionController.admit(searchRequest.clientKey, AdmissionController.cost(searchRequest.solrQuery));
+        } catch (AdmissionController.RejectedException e) {
+            LOG.debug("Search rejected: {}", e.getMessage());
+            searchRequest.status = 429;
+            searchRequest.retryAfterSeconds = e.getRetryAfterSeconds();
+            return new ImageSearchErrorResponse(e);
+        }
+
+        try {
+            LOG.debug("Wayback HOST: {}", collectionsHost);
+            LOG.debug("SOLR HOST: {}", solrHost);
+
+            SolrQuery solrQuery = searchRequest.solrQuery;
+
+            LOG.debug("SOLR Query: {}", solrQuery);
 
             QueryResponse responseSolr = null;
 
-            responseSolr = solr.query(solrQuery);
+            responseSolr = solrExecutor.query(solrQuery);
+            searchRequest.stale = responseSolr instanceof SolrQueryExecutor.StaleQueryResponse;
 
             LOG.debug("SOLR Query Done");
 
-            SolrDocumentList documents = new SolrDocumentList();
-            documents.addAll(responseSolr.getResults());
-            for (SolrDocument doc : documents) {
-                docIds.add(V1_DATE_FORMAT.format(doc.getFieldValue(V2_IMAGETSTAMP)) + "/" + doc.getFieldValue("imgUrl"));
-            }
+            V1DocumentList documents = V1DocumentList.of(responseSolr.getResults(), searchRequest.fields.getSlots());
 
-            int numFound = (int) responseSolr.getResults().getNumFound();
+            int numFound = (int) documents.getNumFound();
 
-            int offsetPreviousPage = getOffsetPreviousPage(start, limit);
-            String previousPage = requestURL.replaceAll("&offset=([^&]+)", "").concat("&offset=" + offsetPreviousPage);
+            String previousPage;
+            String nextPage;
+            if (searchRequest.cursor == null) {
+                int offsetPreviousPage = getOffsetPreviousPage(start, limit);
+                previousPage = pageLink(searchRequest, "offset", String.valueOf(offsetPreviousPage));
 
-            int offsetNextPage = getOffsetNextPage(start, limit, numFound);
-            String nextPage = requestURL.replaceAll("&offset=([^&]+)", "").concat("&offset=" + offsetNextPage);
+                int offsetNextPage = getOffsetNextPage(start, limit, numFound);
+                nextPage = pageLink(searchRequest, "offset", String.valueOf(offsetNextPage));
+            } else {
+                // a cursor only moves forward, and stops changing once all results were returned
+                previousPage = "";
+                String nextCursorMark = responseSolr.getNextCursorMark();
+                if (nextCursorMark == null || nextCursorMark.equals(searchRequest.cursor)) {
+                    nextPage = "";
+                } else {
+                    nextPage = pageLink(searchRequest, "cursor", nextCursorMark);
+                }
+            }
+
+            if (solrExecutor.isPrefetchEnabled()) {
+                SolrQuery nextPageQuery = nextPageQuery(searchRequest, numFound, responseSolr.getNextCursorMark());
+                if (nextPageQuery != null) {
+                    solrExecutor.prefetch(nextPageQuery);
+                }
+            }
 
             String linkToMoreFields = requestURL.replaceAll("&more=([^&]+)", "").concat("&more=" + V1_MOREFIELDS);
 
-            imgSearchResults = new ImageSearchResults(flString.split(","), numFound, documents.size(), responseSolr.getResults().getStart(), linkToMoreFields, nextPage, previousPage, documents, prettyOutput);
+            imgSearchResults = new ImageSearchResults(searchRequest.fields, searchRequest.thumbnailURL, numFound, documents.getDocumentCount(), documents.getStart(), linkToMoreFields, nextPage, previousPage, documents, searchRequest.prettyOutput);
+            if (solrQuery.get(ImageFacets.JSON_FACET) != null) {
+                imgSearchResults.facets = ImageFacets.parse((NamedList<?>) responseSolr.getResponse().get("facets"));
+            }
             
-            if (request.getParameter("debug") != null && request.getParameter("debug").equals("on")) {
+            if (searchRequest.debug) {
                 imgSearchResponse = new ImageSearchResponseDebug(responseSolr.getResponseHeader(), imgSearchResults);
             } else {
                 imgSearchResponse = imgSearchResults;
@@ -280,53 +1224,270 @@ public class ImageSearchServlet extends HttpServlet {
             //} catch (IOException | HttpSolrClient.RemoteSolrException | SolrServerException e) {
             //    LOG.error(e.getClass().getCanonicalName(), e);
             //    imgSearchResponse = new ImageSearchErrorResponse(e);
+        } catch (SolrCircuitBreaker.OpenException e) {
+            // no error log, the breaker logged why it opened
+            ImageSearchMetrics.error(e);
+            imgSearchResponse = new ImageSearchErrorResponse(e);
+            searchRequest.status = HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+            searchRequest.retryAfterSeconds = e.getRetryAfterSeconds();
         } catch (Throwable e) {
             LOG.error(e.getClass().getCanonicalName(), e);
+            ImageSearchMetrics.error(e);
             imgSearchResponse = new ImageSearchErrorResponse(e);
-            response.setStatus(500);
+            searchRequest.status = 500;
+        } finally {
+            admissionController.release();
         }
-        /*finally {
-            if (solr != null)
-                solr.close();
+        return imgSearchResponse;
+    }
+
+    /**
+     * @param searchRequest  - answered search
+     * @param numFound       - number of results of the search
+     * @param nextCursorMark - returned by Solr for cursor searches
+     * @return the Solr query the nextPage link will lead to, or null if there is no next page
+     */
+    private static SolrQuery nextPageQuery(ImageSearchRequest searchRequest, int numFound, String nextCursorMark) {
+        SolrQuery nextPageQuery;
+        if (searchRequest.cursor == null) {
+            int offsetNextPage = searchRequest.start + searchRequest.limit;
+            if (offsetNextPage >= numFound) {
+                return null;
+            }
+            nextPageQuery = searchRequest.solrQuery.getCopy();
+            nextPageQuery.setStart(offsetNextPage);
+        } else {
+            if (nextCursorMark == null || nextCursorMark.equals(searchRequest.cursor)) {
+                return null;
+            }
+            nextPageQuery = searchRequest.solrQuery.getCopy();
+            nextPageQuery.set(CursorMarkParams.CURSOR_MARK_PARAM, nextCursorMark);
         }
-         */
+        return nextPageQuery;
+    }
+
+    /**
+     * Writes the response body and the search log line
+     *
+     * @param searchRequest     - parsed search request
+     * @param imgSearchResponse - results, debug or error response
+     * @param status            - HTTP status of the response
+     * @param response          - type HttpServletResponse
+     */
+    private void writeResponse(ImageSearchRequest searchRequest, Object imgSearchResponse, int status, HttpServletResponse response)
+            throws ServletException, IOException {
+        long endTime;
+        long duration;
 
+        response.setStatus(status);
 
+        response.setContentType("application/json"); //json
 
+        response.setCharacterEncoding("UTF-8");
 
-        try {
-            Gson gson = null;
-            if (prettyOutput) {
-                gson = new GsonBuilder().disableHtmlEscaping().setPrettyPrinting().create();
-            } else {
-                gson = new GsonBuilder().disableHtmlEscaping().create();
-            }
-            jsonSolrResponse = gson.toJson(imgSearchResponse);
+        if (compressionEnabled) {
+            response.addHeader("Vary", "Accept-Encoding");
+        }
+        if (searchRequest.stale) {
+            // served from an expired cache entry because Solr is failing, neither validated nor cached downstream
+            response.setHeader(STALE_HEADER, "true");
+            response.setHeader("Cache-Control", "no-store");
+        } else if (status == 200) {
+            addValidators(searchRequest, response);
+        }
+        if ((status == 429 || status == HttpServletResponse.SC_SERVICE_UNAVAILABLE) && searchRequest.retryAfterSeconds > 0) {
+            response.setHeader("Retry-After", Long.toString(searchRequest.retryAfterSeconds));
+        }
 
+        Gson gson = searchRequest.prettyOutput ? GSON_PRETTY : GSON;
+        long bytes;
+        try {
+            bytes = writeJson(response, gson, imgSearchResponse, searchRequest.acceptsGzip);
         } catch (JsonParseException e) {
+            ImageSearchMetrics.error(e);
             throw new ServletException(e);
+        } catch (RuntimeException e) {
+            // documents are translated while being written, so a malformed one only shows up here
+            LOG.error(e.getClass().getCanonicalName(), e);
+            ImageSearchMetrics.error(e);
+            if (response.isCommitted()) {
+                throw new ServletException(e);
+            }
+            response.resetBuffer();
+            status = 500;
+            response.setStatus(status);
+            bytes = writeJson(response, gson, new ImageSearchErrorResponse(e), searchRequest.acceptsGzip);
         }
+        ImageSearchMetrics.responseWritten(bytes);
+        Stage.REQUEST.record(System.nanoTime() - searchRequest.startNanos);
 
-        response.setContentType("application/json"); //json
+        endTime = System.currentTimeMillis();
+        duration = (endTime - searchRequest.startTime);
 
-        response.setCharacterEncoding("UTF-8");
+        searchEventLog.log(searchRequest, status, duration, docIds(imgSearchResponse));
+    }
 
-        // Get the printwriter object from response to write the required json object to the output stream
-        PrintWriter out = response.getWriter();
-        out.println(jsonSolrResponse);
-        out.flush();
+    /**
+     * @param imgSearchResponse - results, debug or error response, already written
+     * @return tstamp/url of the returned documents, they are collected while the results are written
+     */
+    private static List<String> docIds(Object imgSearchResponse) {
+        ImageSearchResults results = imgSearchResponse instanceof ImageSearchResponseDebug
+                ? ((ImageSearchResponseDebug) imgSearchResponse).getResponse()
+                : imgSearchResponse instanceof ImageSearchResults ? (ImageSearchResults) imgSearchResponse : null;
+        return results != null ? results.docIds : Collections.<String>emptyList();
+    }
 
-        Gson gson = new GsonBuilder().disableHtmlEscaping().create();
-        String docIdsJSON = gson.toJson(docIds);
+    /**
+     * Answers a conditional request whose ETag still matches, without querying Solr
+     *
+     * @param searchRequest - parsed search request, with its ETag
+     * @param response      - type HttpServletResponse
+     */
+    private void writeNotModified(ImageSearchRequest searchRequest, HttpServletResponse response) {
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        if (compressionEnabled) {
+            response.addHeader("Vary", "Accept-Encoding");
+        }
+        addValidators(searchRequest, response);
+        ImageSearchMetrics.notModified();
+        Stage.REQUEST.record(System.nanoTime() - searchRequest.startNanos);
+        searchEventLog.log(searchRequest, HttpServletResponse.SC_NOT_MODIFIED,
+                System.currentTimeMillis() - searchRequest.startTime, Collections.<String>emptyList());
+    }
 
-        endTime = System.currentTimeMillis();
-        duration = (endTime - startTime);
+    private void addValidators(ImageSearchRequest searchRequest, HttpServletResponse response) {
+        if (searchRequest.debug) {
+            return;
+        }
+        if (searchRequest.etag != null) {
+            response.setHeader("ETag", searchRequest.etag);
+        }
+        if (cacheControl != null && !cacheControl.trim().isEmpty()) {
+            response.setHeader("Cache-Control", cacheControl.trim());
+        }
+    }
+
+    /**
+     * Strong ETag of a search: the same index, Solr query (including the ranking profile weights), request URL
+     * (which the paging links are built from) and content coding always give the same bytes.
+     *
+     * @param searchRequest - parsed search request
+     * @param indexVersion  - see {@link IndexVersionTracker}
+     * @return quoted ETag
+     */
+    String etag(ImageSearchRequest searchRequest, String indexVersion) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(indexVersion.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(SolrQueryExecutor.cacheKey(searchRequest.solrQuery).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(searchRequest.requestURL.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) (searchRequest.acceptsGzip ? 1 : 0));
+        byte[] hash = digest.digest();
+
+        char[] etag = new char[34];
+        etag[0] = '"';
+        for (int i = 0; i < 16; i++) {
+            etag[1 + 2 * i] = Character.forDigit((hash[i] >> 4) & 0xf, 16);
+            etag[2 + 2 * i] = Character.forDigit(hash[i] & 0xf, 16);
+        }
+        etag[33] = '"';
+        return new String(etag);
+    }
+
+    /**
+     * @param ifNoneMatch - If-None-Match request header, a list of ETags or *
+     * @param etag        - current ETag of the response
+     * @return whether the client copy is still valid, compared as weak ETags as RFC 7232 asks for If-None-Match
+     */
+    static boolean matchesETag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
+    /**
+     * Streams the response object as UTF-8 to the servlet output, with the same trailing line break println used to add
+     *
+     * @param response - type HttpServletResponse
+     * @param gson     - plain or pretty printing Gson
+     * @param body     - results, debug or error response
+     * @param gzip     - whether the client accepts gzip, bodies above compressionMinBytes are then compressed
+     * @return number of bytes written
+     */
+    private long writeJson(HttpServletResponse response, Gson gson, Object body, boolean gzip) throws IOException {
+        return writeBody(response, gzip, out -> {
+            long serializeStart = System.nanoTime();
+            JsonWriter jsonWriter = gson.newJsonWriter(out);
+            gson.toJson(body, body.getClass(), jsonWriter);
+            Stage.SERIALIZE.record(System.nanoTime() - serializeStart);
+        });
+    }
 
-        String jsonString = gson.toJson(request.getParameterMap());
+    private interface BodyWriter {
+        void write(Writer out) throws IOException;
+    }
 
-        LOG.info(ipAddress + "\t" + userAgent + "\t" + requestURL + "\t" + duration + "ms\tsearch_parameters:" + jsonString + "\tsearch_results:" + docIdsJSON);
+    /**
+     * Streams a UTF-8 body to the servlet output, gzipped if the client accepts it, followed by a line break
+     *
+     * @param response - type HttpServletResponse
+     * @param gzip     - whether the client accepts gzip, bodies above compressionMinBytes are then compressed
+     * @param body     - writes the body
+     * @return number of bytes written
+     */
+    private long writeBody(HttpServletResponse response, boolean gzip, BodyWriter body) throws IOException {
+        return writeBody(response, gzip, true, body);
+    }
 
+    /**
+     * @param lineBreak - whether to end the body with a line break
+     */
+    private long writeBody(HttpServletResponse response, boolean gzip, boolean lineBreak, BodyWriter body) throws IOException {
+        CountingOutputStream counter = new CountingOutputStream(response.getOutputStream());
+        GzipResponseOutputStream compressor = null;
+        if (gzip) {
+            // an error body replacing a failed one must follow the Content-Encoding already set
+            int minBytes = response.containsHeader("Content-Encoding") ? 0 : compressionMinBytes;
+            compressor = new GzipResponseOutputStream(counter, response, minBytes, compressionLevel);
+        }
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(compressor != null ? compressor : counter, StandardCharsets.UTF_8));
+            body.write(out);
+            if (lineBreak) {
+                out.write(System.lineSeparator());
+            }
+            long writeStart = System.nanoTime();
+            out.flush();
+            if (compressor != null) {
+                compressor.finish();
+                if (compressor.isCompressed()) {
+                    ImageSearchMetrics.responseCompressed(compressor.getBytesIn(), counter.getCount());
+                }
+            }
+            Stage.WRITE.record(System.nanoTime() - writeStart);
+            return counter.getCount();
+        } finally {
+            if (compressor != null) {
+                compressor.end();
+            }
+        }
     }
 
     private int getOffsetNextPage(int start, int limit, int numFound) {
@@ -350,13 +1511,28 @@ public class ImageSearchServlet extends HttpServlet {
 
     private void parseSafeSearch(String safeSearch, ArrayList<String> fqStrings) {
         if (!"off".equalsIgnoreCase(safeSearch)) {
-            fqStrings.add("safe:[0 TO 0.49]"); /*Default behaviour is to limit safe score from 0 -> 0.49; else show all images*/
+            fqStrings.add(SAFE_FILTER); /*Default behaviour is to limit safe score from 0 -> 0.49; else show all images*/
         }
     }
 
     private void addBlockFilter(ArrayList<String> fqStrings) {
-        fqStrings.add("blocked:0");
-        fqStrings.add("isInline:false");
+        fqStrings.addAll(BLOCK_FILTERS);
+    }
+
+    /**
+     * Leaves out the spam domains, unless the search is restricted to some sites: those were asked for explicitly
+     */
+    private void addSpamFilter(ArrayList<String> fqStrings) {
+        String spamFilterQuery = spamFilter != null ? spamFilter.getFilterQuery() : null;
+        if (spamFilterQuery == null) {
+            return;
+        }
+        for (String fq : fqStrings) {
+            if (fq.startsWith("pageHost:")) {
+                return;
+            }
+        }
+        fqStrings.add(spamFilterQuery);
     }
 
     private int getLimit(String limitString, int limit) {
@@ -388,48 +1564,33 @@ public class ImageSearchServlet extends HttpServlet {
         }
     }
 
-    private void addScoring(SolrQuery solrQuery, String q) {
-
-        solrQuery.set("defType", "edismax");
-
-        StringBuilder qs = new StringBuilder();
-        for (Map.Entry<String, Integer> entry : DEFAULT_QUERY_FIELDS.entrySet())
-            qs.append(String.format("%s^%d ", entry.getKey(), entry.getValue()));
-        solrQuery.set("qf", qs.toString());
-
-
-        qs = new StringBuilder();
-        for (Map.Entry<String, Integer> entry : DEFAULT_QUERY_FIELDS.entrySet())
-            qs.append(String.format("%s^%d ", entry.getKey(), entry.getValue() * 1000));
-
-        solrQuery.set("pf", qs.toString());
-        solrQuery.set("ps", 1);
-
-        qs = new StringBuilder();
-        for (Map.Entry<String, Integer> entry : DEFAULT_QUERY_FIELDS.entrySet())
-            qs.append(String.format("%s^%d ", entry.getKey(), entry.getValue() * 100));
-
-        solrQuery.set("pf2", qs.toString());
-        solrQuery.set("ps2", 2);
-
-        qs = new StringBuilder();
-        for (Map.Entry<String, Integer> entry : DEFAULT_QUERY_FIELDS.entrySet())
-            qs.append(String.format("%s^%d ", entry.getKey(), entry.getValue() * 10));
-
-        solrQuery.set("pf3", qs.toString());
-        solrQuery.set("ps3", 3);
+    /**
+     * Pages with Solr's cursorMark instead of start, so deep pages cost the same as the first one.
+     * The sort must end on the uniqueKey for the cursor to be stable.
+     *
+     * @param cursor    - "*" for the first page, or the nextCursorMark of the previous one
+     * @param solrQuery - query with its sort already set
+     */
+    private void addCursor(String cursor, SolrQuery solrQuery) {
+        boolean sortsOnId = false;
+        for (SolrQuery.SortClause sortClause : solrQuery.getSorts()) {
+            if (sortClause.getItem().equals(V2_ID)) {
+                sortsOnId = true;
+            }
+        }
+        if (!sortsOnId) {
+            solrQuery.addSort(V2_ID, SolrQuery.ORDER.asc);
+        }
+        solrQuery.set(CursorMarkParams.CURSOR_MARK_PARAM, cursor);
     }
 
-    private SolrClient createSolr(String solrHost, String solrCollection) {
-        SolrClient solr = null;
-        if (solrHost.contains(",")) {
-            final List<String> zkServers = Arrays.asList(solrHost.split(","));
-            solr = new CloudSolrClient.Builder(zkServers, Optional.of("/solr")).build();
-            ((CloudSolrClient) solr).setDefaultCollection(solrCollection);
-        } else {
-            solr = new HttpSolrClient.Builder(solrHost + solrCollection).build();
-        }
-        return solr;
+    /**
+     * @param solrQuery      - query to score
+     * @param rankingProfile - name of the ranking profile, the default one is used when missing or unknown
+     */
+    void addScoring(SolrQuery solrQuery, String rankingProfile) {
+        RankingProfile profile = rankingProfile == null ? null : rankingProfiles.get(rankingProfile);
+        (profile != null ? profile : defaultRankingProfile).apply(solrQuery);
     }
 
     private void parseCollectionFilter(String requestedCollection, ArrayList<String> fqStrings) {
@@ -467,24 +1628,15 @@ public class ImageSearchServlet extends HttpServlet {
 
     private void parseSizes(String sizeParameter, ArrayList<String> fqStrings) {
         if (sizeParameter != null && !sizeParameter.equals("")) {
-            switch (sizeParameter) {
-                case "sm":
-                    fqStrings.add("{!frange u=65536 }product(imgHeight,imgWidth)"); /*images up to 65536pixels² of area - i.e. max square size of 256x256px*/
-                    break;
-                case "md":
-                    fqStrings.add("{!frange l=65537 u=810000 }product(imgHeight,imgWidth)"); /*images between 65537pixels² of area , up to  810000px² of area - i.e. max square size of 900x900px*/
-                    break;
-                case "lg":
-                    fqStrings.add("{!frange l=810001}product(imgHeight,imgWidth)"); /*images bigger than 810000px² of area*/
-                    break;
+            String sizeFilter = SIZE_FILTERS.get(sizeParameter);
+            if (sizeFilter != null) {
+                fqStrings.add(sizeFilter);
             }
         }
     }
 
-    private void parseDates(String dateStart, String dateEnd, ArrayList<String> fqStrings) {
+    void parseDates(String dateStart, String dateEnd, ArrayList<String> fqStrings) {
         // date restriction
-        SimpleDateFormat V1_DATE_FORMAT = (SimpleDateFormat) APIVersionTranslator.V1_DATE_FORMAT.clone();
-        SimpleDateFormat V2_DATE_FORMAT = (SimpleDateFormat) APIVersionTranslator.V2_DATE_FORMAT.clone();
 
         /*
         if (dateStart == null || dateStart.length() == 0) {
@@ -493,8 +1645,7 @@ public class ImageSearchServlet extends HttpServlet {
         }
 
         if (dateEnd == null || dateEnd.length() == 0) {
-            Calendar dateEND = currentDate();
-            dateEnd = V2_DATE_FORMAT.format(dateEND.getTime());
+            dateEnd = APIVersionTranslator.formatV2(currentDate());
         }
         */
 
@@ -504,31 +1655,17 @@ public class ImageSearchServlet extends HttpServlet {
         if (dateStart != null && dateEnd != null) { //Logic to accept pages with yyyy and yyyyMMddHHmmss format
 
             try {
-                V2_DATE_FORMAT.setLenient(false);
-                DateFormat dOutputFormatYear = new SimpleDateFormat("yyyy");
-                dOutputFormatYear.setLenient(false);
-                if (tryParse(V1_DATE_FORMAT, dateStart)) {
-                    Date dStart = V1_DATE_FORMAT.parse(dateStart);
-                    dateStart = V2_DATE_FORMAT.format(dStart.getTime());
-                } else if (tryParse(V1_DATE_FORMAT, dateStart + "0101000000")) {
-                    Date dStart = V1_DATE_FORMAT.parse(dateStart + "0101000000");
-                    dateStart = V2_DATE_FORMAT.format(dStart.getTime());
-                } else {
-                    dateStart = "1996-01-01T00:00:00Z";
+                Long start = APIVersionTranslator.parseV1(dateStart);
+                if (start == null) {
+                    start = APIVersionTranslator.parseV1(dateStart + "0101000000");
                 }
+                dateStart = start != null ? APIVersionTranslator.formatV2(start) : "1996-01-01T00:00:00Z";
 
-                if (tryParse(V1_DATE_FORMAT, dateEnd)) {
-                    Date dEnd = V1_DATE_FORMAT.parse(dateEnd);
-                    dateEnd = V2_DATE_FORMAT.format(dEnd.getTime());
-                } else if (tryParse(V1_DATE_FORMAT, dateEnd + "1231235959")) {
-                    Date dEnd = V1_DATE_FORMAT.parse(dateEnd + "1231235959");
-                    dateEnd = V2_DATE_FORMAT.format(dEnd.getTime());
-                } else {
-                    Calendar dateEND = currentDate();
-                    dateEnd = V2_DATE_FORMAT.format(dateEND.getTime());
+                Long end = APIVersionTranslator.parseV1(dateEnd);
+                if (end == null) {
+                    end = APIVersionTranslator.parseV1(dateEnd + "1231235959");
                 }
-            } catch (ParseException e) {
-                LOG.error("Parse Exception: ", e);
+                dateEnd = APIVersionTranslator.formatV2(end != null ? end : currentDate());
             } catch (IndexOutOfBoundsException e) {
                 LOG.error("Parse Exception: ", e);
             }
@@ -542,7 +1679,7 @@ public class ImageSearchServlet extends HttpServlet {
     /************************************************************/
 
 
-    private String checkSpecialOperators(String q, ArrayList<String> fqStrings) {
+    String checkSpecialOperators(String q, ArrayList<String> fqStrings) {
         LOG.debug("checking special operators");
         if (q.contains("fq:") || q.contains("site:") || q.contains("type:") || q.contains("safe:") || q.contains("size:") || q.contains("collapse:")) { /*query has a special operator we need to deal with it*/
             LOG.debug("found special operator");
@@ -593,7 +1730,7 @@ public class ImageSearchServlet extends HttpServlet {
         } else return q;
     }
 
-    private String checkSortOperator(String q, ArrayList<Map.Entry<String, SolrQuery.ORDER>> sortStrings) {
+    String checkSortOperator(String q, ArrayList<Map.Entry<String, SolrQuery.ORDER>> sortStrings) {
         LOG.debug("checking sort operators");
         if (q.contains("sort:")) {
             LOG.debug("found sort operator");
@@ -666,43 +1803,14 @@ public class ImageSearchServlet extends HttpServlet {
         }
     }
 
-    /**
-     * Checks whether it is possible to parse from a string to a format
-     *
-     * @param df
-     * @param s
-     * @return
-     */
-    private static Boolean tryParse(DateFormat df, String s) {
-        DateFormat df2 = (DateFormat) df.clone();
-        boolean valid = false;
-        try {
-            df2.parse(s);
-            valid = true;
-        } catch (ParseException e) {
-            valid = false;
-        }
-        return valid;
-    }
-
-
     /**
      * Returns the current arquivo image search default end date (the last day of the year)
      *
-     * @return current date in the format (YYYYMMDDHHMMSS)
-     */
-    private static Calendar currentDate() {
-        //This is initialized using current time to avoid building another Calendar object to get the current year
-        Calendar DATE_END = new GregorianCalendar();
-        DATE_END.set(Calendar.YEAR, DATE_END.get(Calendar.YEAR));
-        DATE_END.set(Calendar.MONTH, 12 - 1);
-        DATE_END.set(Calendar.DAY_OF_MONTH, 31);
-        DATE_END.set(Calendar.HOUR_OF_DAY, 23);
-        DATE_END.set(Calendar.MINUTE, 59);
-        DATE_END.set(Calendar.SECOND, 59);
-        // If you forget the milliseconds, you are going to have a bad time
-        DATE_END.set(Calendar.MILLISECOND, 0);
-        return DATE_END;
+     * @return milliseconds since the epoch of the last second of the current year, in the server time zone
+     */
+    private static long currentDate() {
+        return LocalDateTime.of(Year.now().getValue(), 12, 31, 23, 59, 59)
+                .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,84 @@
+package pt.arquivo;
+
+import java.io.Closeable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.response.FieldStatsInfo;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a cached version of the image index, polled from Solr in the background, so requests can build
+ * validators (ETags) without a round trip. The version is the number of documents plus the highest value of
+ * versionField (_version_ by default): both are merged across shards and agree between replicas, which the
+ * per core Lucene version does not.
+ */
+class IndexVersionTracker implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(IndexVersionTracker.class);
+
+    private final SolrClient solr;
+    private final String versionField;
+    private final Runnable onChange;
+    private final ScheduledExecutorService poller;
+    private volatile String version;
+
+    /**
+     * @param solr         - client used for the version query, results are not cached
+     * @param versionField - numeric field that grows with every update
+     * @param pollMillis   - time between version queries
+     * @param onChange     - called on the poller thread when the version changes, e.g. to drop cached results
+     */
+    IndexVersionTracker(SolrClient solr, String versionField, long pollMillis, Runnable onChange) {
+        this.solr = solr;
+        this.versionField = versionField;
+        this.onChange = onChange;
+        this.poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "imagesearch-index-version");
+            thread.setDaemon(true);
+            return thread;
+        });
+        poller.scheduleWithFixedDelay(this::poll, 0, pollMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the last known index version, or null while it is unknown
+     */
+    String getVersion() {
+        return version;
+    }
+
+    void poll() {
+        try {
+            SolrQuery solrQuery = new SolrQuery("*:*");
+            solrQuery.setRows(0);
+            solrQuery.setGetFieldStatistics(versionField);
+            QueryResponse response = solr.query(solrQuery);
+
+            String polled = String.valueOf(response.getResults().getNumFound());
+            FieldStatsInfo stats = response.getFieldStatsInfo() == null ? null : response.getFieldStatsInfo().get(versionField);
+            if (stats != null && stats.getMax() != null) {
+                polled += "-" + stats.getMax();
+            }
+
+            String previous = version;
+            version = polled;
+            if (previous != null && !previous.equals(polled)) {
+                LOG.info("[IndexVersionTracker] Index version changed from " + previous + " to " + polled);
+                onChange.run();
+            }
+        } catch (Exception e) {
+            // keep the last known version, validators stay valid until the index is reachable again
+            LOG.error("[IndexVersionTracker] Error polling the index version", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        poller.shutdownNow();
+    }
+}
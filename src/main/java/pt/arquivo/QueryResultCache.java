@@ -0,0 +1,195 @@
+package pt.arquivo;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * Bounded LRU cache with a time to live, used to answer repeated Solr queries without going to the cluster.
+ * Cached values are shared between requests and must be treated as read only.
+ * Expired entries can be kept for staleMillis more, only to be returned by {@link #getStale} when Solr fails.
+ * The cache is bounded either by its number of entries or, given a weigher, by the bytes of its values.
+ */
+public class QueryResultCache<V> {
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final long staleMillis;
+    private final long maxBytes;
+    // null when bounded by entries
+    private final ToLongFunction<V> weigher;
+    private final LinkedHashMap<String, CachedValue<V>> entries;
+    // guarded by entries
+    private long bytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+
+    public QueryResultCache(int maxEntries, long ttlMillis) {
+        this(maxEntries, ttlMillis, 0);
+    }
+
+    public QueryResultCache(int maxEntries, long ttlMillis, long staleMillis) {
+        this(maxEntries, Long.MAX_VALUE, null, ttlMillis, staleMillis);
+    }
+
+    /**
+     * @param maxBytes  - bound of the summed size of the values
+     * @param ttlMillis - time to live of the entries
+     * @param weigher   - size of a value in bytes, values bigger than maxBytes are not cached
+     */
+    public QueryResultCache(long maxBytes, long ttlMillis, ToLongFunction<V> weigher) {
+        this(Integer.MAX_VALUE, maxBytes, weigher, ttlMillis, 0);
+    }
+
+    private QueryResultCache(int maxEntries, long maxBytes, ToLongFunction<V> weigher, long ttlMillis, long staleMillis) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.weigher = weigher;
+        this.ttlMillis = ttlMillis;
+        this.staleMillis = Math.max(0, staleMillis);
+        // access order makes the eldest entry the least recently used one
+        this.entries = new LinkedHashMap<String, CachedValue<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedValue<V>> eldest) {
+                if (size() > QueryResultCache.this.maxEntries) {
+                    evictions.increment();
+                    bytes -= eldest.getValue().bytes;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return maxEntries > 0 && maxBytes > 0 && ttlMillis > 0;
+    }
+
+    /**
+     * @param key - normalized query, see {@link SolrQueryExecutor#cacheKey}
+     * @return the cached value, or null if it is missing or expired
+     */
+    public V get(String key) {
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            CachedValue<V> cached = entries.get(key);
+            if (cached == null) {
+                misses.increment();
+                return null;
+            }
+            if (now - cached.created > ttlMillis) {
+                if (now - cached.created > ttlMillis + staleMillis) {
+                    entries.remove(key);
+                    bytes -= cached.bytes;
+                    evictions.increment();
+                }
+                misses.increment();
+                return null;
+            }
+            hits.increment();
+            return cached.value;
+        }
+    }
+
+    /**
+     * @param key - normalized query, see {@link SolrQueryExecutor#cacheKey}
+     * @return the cached value even if expired, as long as it is not older than the ttl plus staleMillis
+     */
+    public V getStale(String key) {
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            CachedValue<V> cached = entries.get(key);
+            if (cached == null || now - cached.created > ttlMillis + staleMillis) {
+                return null;
+            }
+            staleHits.increment();
+            return cached.value;
+        }
+    }
+
+    /**
+     * Unlike {@link #get}, does not count as a hit or a miss
+     *
+     * @return whether a live entry exists for the key
+     */
+    public boolean contains(String key) {
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            CachedValue<V> cached = entries.get(key);
+            return cached != null && now - cached.created <= ttlMillis;
+        }
+    }
+
+    public void put(String key, V value) {
+        long size = weigher != null ? weigher.applyAsLong(value) : 0;
+        if (size > maxBytes) {
+            return;
+        }
+        CachedValue<V> cached = new CachedValue<>(value, System.currentTimeMillis(), size);
+        synchronized (entries) {
+            CachedValue<V> previous = entries.put(key, cached);
+            bytes += size - (previous != null ? previous.bytes : 0);
+            // least recently used first
+            Iterator<CachedValue<V>> eldest = entries.values().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                bytes -= eldest.next().bytes;
+                eldest.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            bytes = 0;
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return summed size of the values, 0 when bounded by entries
+     */
+    public long getBytes() {
+        synchronized (entries) {
+            return bytes;
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getStaleHits() {
+        return staleHits.sum();
+    }
+
+    private static class CachedValue<V> {
+        final V value;
+        final long created;
+        final long bytes;
+
+        CachedValue(V value, long created, long bytes) {
+            this.value = value;
+            this.created = created;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package pt.arquivo;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Edismax scoring parameters (qf, pf, pf2, pf3 and their slops) built once and copied into every query.
+ * Profiles other than the default one are declared in application.properties and selected with the
+ * rankingProfile request parameter, so ranking weights can be compared without a redeploy.
+ */
+class RankingProfile {
+    private static final Logger LOG = LoggerFactory.getLogger(RankingProfile.class);
+
+    static final String DEFAULT_NAME = "default";
+
+    private static final Map<String, Integer> DEFAULT_QUERY_FIELDS = new HashMap<String, Integer>() {{
+        put("imgTitle", 4);
+        put("imgAlt", 3);
+        put("imgCaption", 3);
+        put("imgUrlTokens", 2);
+        put("pageTitle", 1);
+        put("pageUrlTokens", 1);
+    }};
+    // pf, pf2 and pf3 weights are the qf ones multiplied by these
+    private static final int[] DEFAULT_PHRASE_BOOSTS = {1000, 100, 10};
+    // only change the scores, not which documents match
+    private static final String[] PHRASE_PARAMS = {"pf", "ps", "pf2", "ps2", "pf3", "ps3"};
+
+    static final RankingProfile DEFAULT = new RankingProfile(DEFAULT_QUERY_FIELDS, DEFAULT_PHRASE_BOOSTS);
+
+    private final ModifiableSolrParams params = new ModifiableSolrParams();
+
+    /**
+     * @param queryFields  - field to qf weight, in the order they should appear
+     * @param phraseBoosts - multipliers of the qf weights for pf, pf2 and pf3
+     */
+    RankingProfile(Map<String, Integer> queryFields, int[] phraseBoosts) {
+        params.set("defType", "edismax");
+        params.set("qf", weights(queryFields, 1));
+        params.set("pf", weights(queryFields, phraseBoosts[0]));
+        params.set("ps", 1);
+        params.set("pf2", weights(queryFields, phraseBoosts[1]));
+        params.set("ps2", 2);
+        params.set("pf3", weights(queryFields, phraseBoosts[2]));
+        params.set("ps3", 3);
+    }
+
+    /**
+     * Sets the scoring parameters of this profile on the query
+     */
+    void apply(SolrQuery solrQuery) {
+        Iterator<String> names = params.getParameterNamesIterator();
+        while (names.hasNext()) {
+            String param = names.next();
+            solrQuery.set(param, params.getParams(param));
+        }
+    }
+
+    /**
+     * Removes the phrase boosts from a query whose results are not ranked, e.g. counted or sorted on a field
+     */
+    static void removePhraseBoosts(SolrQuery solrQuery) {
+        for (String param : PHRASE_PARAMS) {
+            solrQuery.remove(param);
+        }
+    }
+
+    private static String weights(Map<String, Integer> queryFields, int multiplier) {
+        StringBuilder qs = new StringBuilder();
+        for (Map.Entry<String, Integer> entry : queryFields.entrySet())
+            qs.append(entry.getKey()).append('^').append(entry.getValue() * multiplier).append(' ');
+        return qs.toString();
+    }
+
+    /**
+     * Reads the profiles listed in rankingProfiles, each one with rankingProfile.NAME.queryFields
+     * (e.g. "imgTitle^4 imgAlt^3") and optionally rankingProfile.NAME.phraseBoosts (e.g. "1000,100,10").
+     * Profiles with invalid settings are logged and skipped.
+     *
+     * @return profiles by name, always including the default one
+     */
+    static Map<String, RankingProfile> load() {
+        Map<String, RankingProfile> profiles = new HashMap<>();
+        profiles.put(DEFAULT_NAME, DEFAULT);
+
+        String names = ImageSearchProperties.get("rankingProfiles");
+        if (names == null || names.trim().isEmpty()) {
+            return Collections.unmodifiableMap(profiles);
+        }
+        for (String name : names.split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            try {
+                Map<String, Integer> queryFields = parseQueryFields(ImageSearchProperties.get("rankingProfile." + name + ".queryFields"));
+                int[] phraseBoosts = parsePhraseBoosts(ImageSearchProperties.get("rankingProfile." + name + ".phraseBoosts"));
+                profiles.put(name, new RankingProfile(queryFields, phraseBoosts));
+                LOG.info("[RankingProfile] Loaded ranking profile " + name);
+            } catch (IllegalArgumentException e) {
+                LOG.error("[RankingProfile] Ignoring ranking profile " + name + ": " + e.getMessage());
+            }
+        }
+        return Collections.unmodifiableMap(profiles);
+    }
+
+    private static Map<String, Integer> parseQueryFields(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            throw new IllegalArgumentException("missing queryFields");
+        }
+        Map<String, Integer> queryFields = new LinkedHashMap<>();
+        for (String field : value.trim().split("[\\s,]+")) {
+            String[] fieldWeight = field.split("\\^");
+            if (fieldWeight.length > 2 || fieldWeight[0].isEmpty()) {
+                throw new IllegalArgumentException("invalid query field " + field);
+            }
+            queryFields.put(fieldWeight[0], fieldWeight.length == 2 ? Integer.parseInt(fieldWeight[1]) : 1);
+        }
+        return queryFields;
+    }
+
+    private static int[] parsePhraseBoosts(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return DEFAULT_PHRASE_BOOSTS;
+        }
+        String[] boosts = value.trim().split("\\s*,\\s*");
+        if (boosts.length != 3) {
+            throw new IllegalArgumentException("phraseBoosts needs the pf, pf2 and pf3 multipliers");
+        }
+        return new int[]{Integer.parseInt(boosts[0]), Integer.parseInt(boosts[1]), Integer.parseInt(boosts[2])};
+    }
+}
@@ -0,0 +1,175 @@
+package pt.arquivo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.gson.stream.JsonWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pt.arquivo.metrics.ImageSearchMetrics;
+
+/**
+ * Search log written off the request threads. Each answered search becomes an event in a {@link BoundedRingBuffer},
+ * and a background thread writes the events in batches, one JSON object per line (NDJSON), to the searchEvents
+ * logger configured in log4j.properties. When the writer falls behind and the buffer fills up, events are dropped
+ * and counted instead of slowing down the requests.
+ */
+class SearchEventLog implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(SearchEventLog.class);
+    private static final Logger EVENTS = LoggerFactory.getLogger("searchEvents");
+    // how long the writer sleeps when there is nothing to write
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final BoundedRingBuffer<SearchEvent> buffer;
+    private final int batchSize;
+    private final Thread writer;
+    private volatile boolean running = true;
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * @param capacity  - events kept while waiting for the writer
+     * @param batchSize - maximum events per write
+     */
+    SearchEventLog(int capacity, int batchSize) {
+        this.buffer = new BoundedRingBuffer<>(capacity);
+        this.batchSize = Math.max(1, batchSize);
+        this.writer = new Thread(this::writeEvents, "imagesearch-event-log");
+        writer.setDaemon(true);
+        writer.start();
+
+        ImageSearchMetrics.registerCounter("search_events_written_total", "Search events written to the search log",
+                written::sum);
+        ImageSearchMetrics.registerCounter("search_events_dropped_total", "Search events dropped because the search log buffer was full",
+                dropped::sum);
+    }
+
+    /**
+     * Queues the event of an answered search, never blocks
+     *
+     * @param searchRequest - the answered search
+     * @param status        - HTTP status of the response
+     * @param duration      - milliseconds taken to answer
+     * @param docIds        - tstamp/url of the returned documents
+     */
+    void log(ImageSearchRequest searchRequest, int status, long duration, List<String> docIds) {
+        SearchEvent event = new SearchEvent(searchRequest, status, duration, docIds);
+        if (!buffer.offer(event)) {
+            dropped.increment();
+        }
+    }
+
+    private void writeEvents() {
+        StringWriter batch = new StringWriter();
+        while (running) {
+            int events = drain(batch);
+            if (events == 0) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+        // whatever was queued before close
+        int events;
+        do {
+            events = drain(batch);
+        } while (events > 0);
+    }
+
+    private int drain(StringWriter batch) {
+        batch.getBuffer().setLength(0);
+        int events = 0;
+        SearchEvent event;
+        while (events < batchSize && (event = buffer.poll()) != null) {
+            if (events > 0) {
+                batch.write('\n');
+            }
+            try {
+                event.write(batch);
+                events++;
+            } catch (IOException | RuntimeException e) {
+                LOG.error("[SearchEventLog] Error writing a search event", e);
+            }
+        }
+        if (events > 0) {
+            // the layout adds the line break of the last event
+            EVENTS.info(batch.toString());
+            written.add(events);
+        }
+        return events;
+    }
+
+    /**
+     * Stops the writer once the queued events are written
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        ImageSearchMetrics.unregister("search_events_written_total");
+        ImageSearchMetrics.unregister("search_events_dropped_total");
+    }
+
+    private static class SearchEvent {
+        final long time;
+        final String ipAddress;
+        final String userAgent;
+        final String requestURL;
+        final int status;
+        final long duration;
+        final Map<String, String[]> parameters;
+        final List<String> docIds;
+
+        SearchEvent(ImageSearchRequest searchRequest, int status, long duration, List<String> docIds) {
+            this.time = searchRequest.startTime;
+            this.ipAddress = searchRequest.ipAddress;
+            this.userAgent = searchRequest.userAgent;
+            this.requestURL = searchRequest.requestURL;
+            this.status = status;
+            this.duration = duration;
+            // the container may recycle its parameter map once the request is over
+            this.parameters = searchRequest.parameters == null ? Collections.emptyMap() : new LinkedHashMap<>(searchRequest.parameters);
+            this.docIds = docIds;
+        }
+
+        void write(StringWriter out) throws IOException {
+            JsonWriter json = new JsonWriter(out);
+            json.setHtmlSafe(false);
+            json.beginObject();
+            json.name("time").value(Instant.ofEpochMilli(time).toString());
+            json.name("ip").value(ipAddress);
+            json.name("userAgent").value(userAgent);
+            json.name("url").value(requestURL);
+            json.name("status").value(status);
+            json.name("durationMs").value(duration);
+            json.name("parameters").beginObject();
+            for (Map.Entry<String, String[]> parameter : parameters.entrySet()) {
+                json.name(parameter.getKey()).beginArray();
+                for (String value : parameter.getValue()) {
+                    json.value(value);
+                }
+                json.endArray();
+            }
+            json.endObject();
+            json.name("results").beginArray();
+            for (String docId : docIds) {
+                json.value(docId);
+            }
+            json.endArray();
+            json.endObject();
+            json.flush();
+        }
+    }
+}
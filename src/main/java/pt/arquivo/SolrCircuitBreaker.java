@@ -0,0 +1,201 @@
+package pt.arquivo;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pt.arquivo.metrics.ImageSearchMetrics;
+
+/**
+ * Stops sending queries to Solr while it is failing, so requests fail fast instead of each waiting for the socket
+ * timeout. After solrBreakerFailures consecutive failures the circuit opens for solrBreakerOpenMillis, then a single
+ * probe query is let through (half-open): its success closes the circuit, its failure opens it again, and so does
+ * no outcome within another solrBreakerOpenMillis.
+ * Queries rejected by Solr itself, e.g. a syntax error, are not failures, and the outcome of a query sent before
+ * the last state change is ignored, so queries still running when the circuit opened cannot hold it open.
+ */
+class SolrCircuitBreaker implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(SolrCircuitBreaker.class);
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    // returned by allowRequest when the query may not go to Solr
+    static final long REJECTED = -1;
+
+    private final int failureThreshold;
+    private final long openNanos;
+    private final AtomicReference<Phase> phase = new AtomicReference<>(new Phase(State.CLOSED, 0));
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder halfOpened = new LongAdder();
+    private final LongAdder closed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param failureThreshold - consecutive failures that open the circuit
+     * @param openMillis       - time the circuit stays open before a probe query
+     */
+    SolrCircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+
+        ImageSearchMetrics.registerGauge("solr_circuit_state", "State of the Solr circuit breaker: 0 closed, 1 open, 2 half-open",
+                () -> phase.get().state.ordinal());
+        ImageSearchMetrics.registerCounter("solr_circuit_opened_total", "Times the Solr circuit breaker opened", opened::sum);
+        ImageSearchMetrics.registerCounter("solr_circuit_half_opened_total", "Times the Solr circuit breaker let a probe query through", halfOpened::sum);
+        ImageSearchMetrics.registerCounter("solr_circuit_closed_total", "Times the Solr circuit breaker closed after a successful probe", closed::sum);
+        ImageSearchMetrics.registerCounter("solr_circuit_rejected_total", "Solr queries not sent because the circuit was open", rejected::sum);
+    }
+
+    /**
+     * @return the epoch the query goes to Solr in, to hand to {@link #onSuccess(long)} or
+     * {@link #onFailure(long, Throwable)}, or {@link #REJECTED}. The first caller after the open period becomes the
+     * probe.
+     */
+    long allowRequest() {
+        Phase current = phase.get();
+        if (current.state == State.CLOSED) {
+            return current.epoch;
+        }
+        if (current.state == State.OPEN && System.nanoTime() - current.since >= openNanos) {
+            Phase probing = current.next(State.HALF_OPEN);
+            if (phase.compareAndSet(current, probing)) {
+                halfOpened.increment();
+                LOG.info("[SolrCircuitBreaker] Half-open, probing Solr");
+                return probing.epoch;
+            }
+        } else if (current.state == State.HALF_OPEN && System.nanoTime() - current.since >= openNanos) {
+            // the probe is hanging, or its outcome was lost: Solr is not answering either way
+            open(current, "probe with no outcome after " + TimeUnit.NANOSECONDS.toMillis(openNanos) + "ms");
+        }
+        rejected.increment();
+        return REJECTED;
+    }
+
+    /**
+     * @param epoch - from {@link #allowRequest()}
+     * @return true if the query is the probe of the half-open circuit, it must report its own outcome
+     */
+    boolean isProbe(long epoch) {
+        Phase current = phase.get();
+        return current.state == State.HALF_OPEN && current.epoch == epoch;
+    }
+
+    boolean isClosed() {
+        return phase.get().state == State.CLOSED;
+    }
+
+    /**
+     * @param epoch - from {@link #allowRequest()} when the query was sent
+     */
+    void onSuccess(long epoch) {
+        Phase current = phase.get();
+        if (current.epoch != epoch) {
+            // sent before the last state change, it says nothing about the current one
+            return;
+        }
+        consecutiveFailures.set(0);
+        if (current.state == State.HALF_OPEN && phase.compareAndSet(current, current.next(State.CLOSED))) {
+            closed.increment();
+            LOG.info("[SolrCircuitBreaker] Closed, Solr is answering again");
+        }
+    }
+
+    /**
+     * @param epoch - from {@link #allowRequest()} when the query was sent
+     * @param e     - error of the Solr query
+     */
+    void onFailure(long epoch, Throwable e) {
+        if (!isFailure(e)) {
+            // Solr answered, the query was wrong
+            onSuccess(epoch);
+            return;
+        }
+        Phase current = phase.get();
+        if (current.epoch != epoch) {
+            // e.g. a query already running when the circuit opened, failing after it
+            return;
+        }
+        if (current.state == State.HALF_OPEN || consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            open(current, e);
+        }
+    }
+
+    private void open(Phase from, Object cause) {
+        if (phase.compareAndSet(from, from.next(State.OPEN))) {
+            consecutiveFailures.set(0);
+            opened.increment();
+            LOG.error("[SolrCircuitBreaker] Open for " + TimeUnit.NANOSECONDS.toMillis(openNanos) + "ms after: " + cause);
+        }
+    }
+
+    /**
+     * @param e - error of a Solr query
+     * @return false for errors in the query itself, Solr is then working fine
+     */
+    static boolean isFailure(Throwable e) {
+        return !(e instanceof SolrException && ((SolrException) e).code() >= 400 && ((SolrException) e).code() < 500);
+    }
+
+    /**
+     * @return seconds until the next probe, at least 1
+     */
+    long retryAfterSeconds() {
+        long remaining = openNanos - (System.nanoTime() - phase.get().since);
+        return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(remaining) + 1);
+    }
+
+    @Override
+    public void close() {
+        ImageSearchMetrics.unregister("solr_circuit_state");
+        ImageSearchMetrics.unregister("solr_circuit_opened_total");
+        ImageSearchMetrics.unregister("solr_circuit_half_opened_total");
+        ImageSearchMetrics.unregister("solr_circuit_closed_total");
+        ImageSearchMetrics.unregister("solr_circuit_rejected_total");
+    }
+
+    /**
+     * Thrown instead of querying Solr while the circuit is open
+     */
+    static class OpenException extends SolrServerException {
+        private static final long serialVersionUID = 1L;
+        private final long retryAfterSeconds;
+
+        OpenException(long retryAfterSeconds) {
+            super("Solr is unavailable, circuit breaker open");
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        long getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+    }
+
+    /**
+     * A state with the time it was entered, replaced as a whole on every change so the two always match. The epoch
+     * counts the changes, it tells the outcome of a query sent before the last one apart.
+     */
+    private static final class Phase {
+        final State state;
+        final long epoch;
+        final long since = System.nanoTime();
+
+        Phase(State state, long epoch) {
+            this.state = state;
+            this.epoch = epoch;
+        }
+
+        Phase next(State state) {
+            return new Phase(state, epoch + 1);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package pt.arquivo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.impl.CloudHttp2SolrClient;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.impl.Http2SolrClient;
+import org.apache.solr.client.solrj.impl.HttpClientUtil;
+import org.apache.solr.client.solrj.impl.HttpListenerFactory;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Result;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pt.arquivo.metrics.ImageSearchMetrics;
+
+/**
+ * Owns the HTTP connections to Solr: builds the Solr client with the pool sizes and timeouts from
+ * application.properties, exports the pool statistics and closes everything on shutdown.
+ * With solrHttp2=true the client multiplexes requests over HTTP/2 connections instead of pooling HTTP/1.1 ones.
+ */
+class SolrConnectionPool implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(SolrConnectionPool.class);
+    private static final String BEGUN_ATTRIBUTE = SolrConnectionPool.class.getName() + ".begun";
+
+    private final int maxConnections = ImageSearchProperties.getInt("solrMaxConnections", 400);
+    private final int maxConnectionsPerHost = ImageSearchProperties.getInt("solrMaxConnectionsPerHost", 200);
+    private final int connectTimeoutMillis = ImageSearchProperties.getInt("solrConnectTimeoutMillis", 5000);
+    private final int socketTimeoutMillis = ImageSearchProperties.getInt("solrSocketTimeoutMillis", 30000);
+    private final int idleTimeoutMillis = ImageSearchProperties.getInt("solrIdleTimeoutMillis", 50000);
+    private final boolean http2 = ImageSearchProperties.getBoolean("solrHttp2", false);
+
+    // HTTP/1.1
+    private PoolingHttpClientConnectionManager connectionManager;
+    private CloseableHttpClient httpClient;
+    private ScheduledExecutorService idleConnectionEvictor;
+
+    // HTTP/2, requests are counted instead since connections are shared
+    private Http2SolrClient http2Client;
+    // only when wrapped by the cloud client, otherwise it is the Solr client closed by its owner
+    private boolean closeHttp2Client;
+    private final LongAdder activeRequests = new LongAdder();
+    private final LongAdder queuedRequests = new LongAdder();
+
+    private final List<SolrClient> replicaClients = new ArrayList<>();
+
+    /**
+     * @param solrHost       - Solr base URL, or a comma separated list of ZooKeeper hosts for SolrCloud
+     * @param solrCollection - collection name
+     */
+    SolrClient createClient(String solrHost, String solrCollection) {
+        if (http2) {
+            return createHttp2Client(solrHost, solrCollection);
+        }
+
+        connectionManager = new PoolingHttpClientConnectionManager(
+                HttpClientUtil.getSocketFactoryRegistryProvider().getSocketFactoryRegistry());
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+        // connections the server may have closed while idle are checked before being reused
+        connectionManager.setValidateAfterInactivity(2000);
+
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set(HttpClientUtil.PROP_MAX_CONNECTIONS, maxConnections);
+        params.set(HttpClientUtil.PROP_MAX_CONNECTIONS_PER_HOST, maxConnectionsPerHost);
+        params.set(HttpClientUtil.PROP_CONNECTION_TIMEOUT, connectTimeoutMillis);
+        params.set(HttpClientUtil.PROP_SO_TIMEOUT, socketTimeoutMillis);
+        params.set(HttpClientUtil.PROP_FOLLOW_REDIRECTS, false);
+        httpClient = HttpClientUtil.createClient(params, connectionManager);
+
+        if (idleTimeoutMillis > 0) {
+            idleConnectionEvictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "imagesearch-solr-idle-evictor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            idleConnectionEvictor.scheduleWithFixedDelay(() -> {
+                connectionManager.closeExpiredConnections();
+                connectionManager.closeIdleConnections(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+            }, idleTimeoutMillis, idleTimeoutMillis / 2, TimeUnit.MILLISECONDS);
+        }
+
+        ImageSearchMetrics.registerGauge("solr_pool_leased_connections", "Connections to Solr in use",
+                () -> connectionManager.getTotalStats().getLeased());
+        ImageSearchMetrics.registerGauge("solr_pool_available_connections", "Idle connections to Solr kept for reuse",
+                () -> connectionManager.getTotalStats().getAvailable());
+        ImageSearchMetrics.registerGauge("solr_pool_pending_connections", "Requests waiting for a connection to Solr",
+                () -> connectionManager.getTotalStats().getPending());
+        ImageSearchMetrics.registerGauge("solr_pool_max_connections", "Maximum number of connections to Solr",
+                () -> connectionManager.getTotalStats().getMax());
+
+        LOG.info("[SolrConnectionPool] HTTP/1.1 pool of " + maxConnections + " connections, " + maxConnectionsPerHost + " per host");
+
+        if (solrHost.contains(",")) {
+            final List<String> zkServers = Arrays.asList(solrHost.split(","));
+            CloudSolrClient solr = new CloudSolrClient.Builder(zkServers, Optional.of("/solr"))
+                    .withHttpClient(httpClient)
+                    .withConnectionTimeout(connectTimeoutMillis)
+                    .withSocketTimeout(socketTimeoutMillis)
+                    .build();
+            solr.setDefaultCollection(solrCollection);
+            return solr;
+        }
+        return new HttpSolrClient.Builder(solrHost + solrCollection)
+                .withHttpClient(httpClient)
+                .withConnectionTimeout(connectTimeoutMillis)
+                .withSocketTimeout(socketTimeoutMillis)
+                .build();
+    }
+
+    /**
+     * Clients for other replicas of the collection, sharing the connections of the main client.
+     * Must be called after {@link #createClient}.
+     *
+     * @param solrHosts      - comma separated Solr base URLs, may be null
+     * @param solrCollection - collection name
+     * @return one client per host, they are closed with the pool
+     */
+    List<SolrClient> createReplicaClients(String solrHosts, String solrCollection) {
+        List<SolrClient> replicas = new ArrayList<>();
+        if (solrHosts == null) {
+            return replicas;
+        }
+        for (String host : solrHosts.split(",")) {
+            host = host.trim();
+            if (host.isEmpty()) {
+                continue;
+            }
+            if (http2) {
+                replicas.add(new Http2SolrClient.Builder(host + solrCollection).withHttpClient(http2Client).build());
+            } else {
+                replicas.add(new HttpSolrClient.Builder(host + solrCollection)
+                        .withHttpClient(httpClient)
+                        .withConnectionTimeout(connectTimeoutMillis)
+                        .withSocketTimeout(socketTimeoutMillis)
+                        .build());
+            }
+        }
+        replicaClients.addAll(replicas);
+        return replicas;
+    }
+
+    private SolrClient createHttp2Client(String solrHost, String solrCollection) {
+        boolean cloud = solrHost.contains(",");
+        Http2SolrClient.Builder builder = cloud ? new Http2SolrClient.Builder() : new Http2SolrClient.Builder(solrHost + solrCollection);
+        http2Client = builder
+                .maxConnectionsPerHost(maxConnectionsPerHost)
+                .connectionTimeout(connectTimeoutMillis)
+                // used by Jetty both as the read timeout of each request and to close idle connections
+                .idleTimeout(socketTimeoutMillis)
+                .build();
+        http2Client.addListenerFactory(this::requestCounter);
+
+        ImageSearchMetrics.registerGauge("solr_pool_leased_connections", "Requests to Solr in progress, HTTP/2 multiplexes them over shared connections",
+                activeRequests::sum);
+        ImageSearchMetrics.registerGauge("solr_pool_pending_connections", "Requests to Solr queued before being sent",
+                queuedRequests::sum);
+
+        LOG.info("[SolrConnectionPool] HTTP/2 client with up to " + maxConnectionsPerHost + " connections per host");
+
+        if (cloud) {
+            closeHttp2Client = true;
+            final List<String> zkServers = Arrays.asList(solrHost.split(","));
+            CloudHttp2SolrClient solr = new CloudHttp2SolrClient.Builder(zkServers, Optional.of("/solr"))
+                    .withHttpClient(http2Client)
+                    .build();
+            solr.setDefaultCollection(solrCollection);
+            return solr;
+        }
+        return http2Client;
+    }
+
+    private HttpListenerFactory.RequestResponseListener requestCounter() {
+        return new HttpListenerFactory.RequestResponseListener() {
+            @Override
+            public void onQueued(Request request) {
+                queuedRequests.increment();
+            }
+
+            @Override
+            public void onBegin(Request request) {
+                request.attribute(BEGUN_ATTRIBUTE, Boolean.TRUE);
+                queuedRequests.decrement();
+                activeRequests.increment();
+            }
+
+            @Override
+            public void onComplete(Result result) {
+                // requests can fail while still queued, e.g. when the connection cannot be opened
+                if (result.getRequest().getAttributes().containsKey(BEGUN_ATTRIBUTE)) {
+                    activeRequests.decrement();
+                } else {
+                    queuedRequests.decrement();
+                }
+            }
+        };
+    }
+
+    /**
+     * Closes the replica clients and the connections, the Solr client itself must be closed first
+     */
+    @Override
+    public void close() {
+        for (SolrClient replica : replicaClients) {
+            try {
+                replica.close();
+            } catch (IOException e) {
+                LOG.error("[SolrConnectionPool] Error closing a replica client", e);
+            }
+        }
+        ImageSearchMetrics.unregister("solr_pool_leased_connections");
+        ImageSearchMetrics.unregister("solr_pool_available_connections");
+        ImageSearchMetrics.unregister("solr_pool_pending_connections");
+        ImageSearchMetrics.unregister("solr_pool_max_connections");
+        if (idleConnectionEvictor != null) {
+            idleConnectionEvictor.shutdownNow();
+        }
+        if (httpClient != null) {
+            HttpClientUtil.close(httpClient);
+        }
+        if (closeHttp2Client) {
+            http2Client.close();
+        }
+    }
+}
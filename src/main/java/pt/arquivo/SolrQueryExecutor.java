@@ -0,0 +1,421 @@
+package pt.arquivo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pt.arquivo.metrics.ImageSearchMetrics;
+import pt.arquivo.metrics.ImageSearchMetrics.Stage;
+
+/**
+ * Solr access layer used by the servlet: every search goes through {@link #query(SolrQuery)}.
+ * Repeated queries are answered from an in-process {@link QueryResultCache}, and identical queries arriving
+ * while one is already running wait for its response instead of being sent to Solr again, each getting its own
+ * {@link #copy(QueryResponse)} of it.
+ * With prefetchEnabled, the next page of a search can be fetched in the background with {@link #prefetch(SolrQuery)},
+ * into a separate short lived cache, as long as Solr is not busy with foreground queries.
+ * With solrHedgeEnabled, slow queries are also sent to another replica, see {@link SolrRequestHedger}.
+ */
+public class SolrQueryExecutor implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(SolrQueryExecutor.class);
+
+    private final SolrClient solr;
+    // sends slow queries again to another replica, null when disabled
+    private final SolrRequestHedger hedger;
+    // fails fast while Solr is down, expired cache entries are served instead when there are some; null when disabled
+    private final SolrCircuitBreaker breaker;
+    private final QueryResultCache<QueryResponse> cache;
+    private final boolean coalesce;
+    private final ConcurrentHashMap<String, CompletableFuture<QueryResponse>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder deduplicated = new LongAdder();
+    // foreground queries waiting for Solr, prefetching stops when there are too many
+    private final AtomicInteger activeQueries = new AtomicInteger();
+
+    // next page prefetch, null when disabled
+    private ThreadPoolExecutor prefetchExecutor;
+    private QueryResultCache<QueryResponse> prefetched;
+    private TokenBucket prefetchRate;
+    private int prefetchMaxActiveQueries;
+    private final LongAdder prefetchRequests = new LongAdder();
+    private final LongAdder prefetchSkipped = new LongAdder();
+    private final LongAdder prefetchFailed = new LongAdder();
+
+    public SolrQueryExecutor(SolrClient solr) {
+        this(solr, Collections.emptyList());
+    }
+
+    /**
+     * @param solr     - client all queries go through first
+     * @param replicas - clients for other replicas, used by hedged queries when solrHedgeEnabled
+     */
+    public SolrQueryExecutor(SolrClient solr, List<SolrClient> replicas) {
+        this.solr = solr;
+        this.hedger = ImageSearchProperties.getBoolean("solrHedgeEnabled", false) ? new SolrRequestHedger(solr, replicas) : null;
+        this.cache = new QueryResultCache<>(
+                ImageSearchProperties.getInt("queryCacheMaxEntries", 2000),
+                ImageSearchProperties.getLong("queryCacheTtlSeconds", 300) * 1000,
+                ImageSearchProperties.getLong("queryCacheStaleSeconds", 3600) * 1000);
+        this.breaker = ImageSearchProperties.getBoolean("solrBreakerEnabled", true)
+                ? new SolrCircuitBreaker(ImageSearchProperties.getInt("solrBreakerFailures", 5), ImageSearchProperties.getLong("solrBreakerOpenMillis", 10000))
+                : null;
+        this.coalesce = ImageSearchProperties.getBoolean("queryCoalescing", true);
+
+        ImageSearchMetrics.registerCounter("query_cache_hits_total", "Searches answered from the result cache", cache::getHits);
+        ImageSearchMetrics.registerCounter("query_cache_misses_total", "Searches not found in the result cache", cache::getMisses);
+        ImageSearchMetrics.registerCounter("query_cache_evictions_total", "Result cache entries evicted or expired", cache::getEvictions);
+        ImageSearchMetrics.registerGauge("query_cache_entries", "Entries in the result cache", cache::size);
+        ImageSearchMetrics.registerCounter("query_cache_stale_hits_total", "Searches answered with an expired cached response because Solr failed", cache::getStaleHits);
+        ImageSearchMetrics.registerCounter("query_deduplicated_total", "Searches that waited for an identical in-flight query", this::getDeduplicated);
+
+        if (ImageSearchProperties.getBoolean("prefetchEnabled", false)) {
+            createPrefetcher();
+        }
+    }
+
+    private void createPrefetcher() {
+        prefetched = new QueryResultCache<>(
+                ImageSearchProperties.getInt("prefetchCacheMaxEntries", 1000),
+                ImageSearchProperties.getLong("prefetchCacheTtlSeconds", 30) * 1000);
+        int perSecond = Math.max(1, ImageSearchProperties.getInt("prefetchPerSecond", 20));
+        prefetchRate = new TokenBucket(perSecond, perSecond);
+        prefetchMaxActiveQueries = ImageSearchProperties.getInt("prefetchMaxActiveQueries", 16);
+        int threads = Math.max(1, ImageSearchProperties.getInt("prefetchThreads", 2));
+        AtomicInteger threadNumber = new AtomicInteger();
+        prefetchExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(threads * 16), runnable -> {
+                    Thread thread = new Thread(runnable, "imagesearch-prefetch-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }, (runnable, executor) -> prefetchSkipped.increment());
+        prefetchExecutor.allowCoreThreadTimeOut(true);
+
+        ImageSearchMetrics.registerCounter("prefetch_requests_total", "Next pages fetched from Solr ahead of being asked for", prefetchRequests::sum);
+        ImageSearchMetrics.registerCounter("prefetch_skipped_total", "Next page prefetches skipped by the rate limit or because Solr was busy", prefetchSkipped::sum);
+        ImageSearchMetrics.registerCounter("prefetch_failed_total", "Next page prefetches that failed", prefetchFailed::sum);
+        ImageSearchMetrics.registerCounter("prefetch_cache_hits_total", "Searches answered by a prefetched page", prefetched::getHits);
+        ImageSearchMetrics.registerCounter("prefetch_cache_misses_total", "Searches missing the result cache that were not prefetched either", prefetched::getMisses);
+        ImageSearchMetrics.registerGauge("prefetch_cache_entries", "Prefetched pages waiting to be asked for", prefetched::size);
+        LOG.info("[SolrQueryExecutor] Next page prefetch enabled, up to " + perSecond + " per second");
+    }
+
+    /**
+     * @param solrQuery - query to run
+     * @return the response, a {@link StaleQueryResponse} when Solr failed or the circuit is open and the cache still
+     * had an expired one
+     * @throws SolrCircuitBreaker.OpenException when the circuit is open and there is no stale response
+     */
+    public QueryResponse query(SolrQuery solrQuery) throws SolrServerException, IOException {
+        if (!cache.isEnabled() && !coalesce && prefetched == null && breaker == null) {
+            return fetch(null, solrQuery, SolrCircuitBreaker.REJECTED);
+        }
+        String key = cacheKey(solrQuery);
+        QueryResponse responseSolr = cache.isEnabled() ? cache.get(key) : null;
+        if (responseSolr != null) {
+            LOG.debug("Query cache hit: {}", key);
+            return responseSolr;
+        }
+        if (prefetched != null && (responseSolr = prefetched.get(key)) != null) {
+            LOG.debug("Prefetched page hit: {}", key);
+            if (cache.isEnabled()) {
+                cache.put(key, responseSolr);
+            }
+            return responseSolr;
+        }
+        long epoch = breaker != null ? breaker.allowRequest() : SolrCircuitBreaker.REJECTED;
+        if (breaker != null && epoch == SolrCircuitBreaker.REJECTED) {
+            return staleOr(key, new SolrCircuitBreaker.OpenException(breaker.retryAfterSeconds()));
+        }
+        try {
+            return coalescedFetch(key, solrQuery, epoch);
+        } catch (SolrServerException | IOException | RuntimeException e) {
+            if (breaker == null || !SolrCircuitBreaker.isFailure(e)) {
+                throw e;
+            }
+            return staleOr(key, e);
+        }
+    }
+
+    /**
+     * Runs a query of an endpoint that keeps its own cache, e.g. thumbnails: through the circuit breaker, so it fails
+     * fast while Solr is down, but not through the result cache, the coalescing of identical queries or the hedger.
+     *
+     * @param solrQuery - query to run
+     * @throws SolrCircuitBreaker.OpenException when the circuit is open
+     */
+    public QueryResponse queryUncached(SolrQuery solrQuery) throws SolrServerException, IOException {
+        long epoch = breaker != null ? breaker.allowRequest() : SolrCircuitBreaker.REJECTED;
+        if (breaker != null && epoch == SolrCircuitBreaker.REJECTED) {
+            throw new SolrCircuitBreaker.OpenException(breaker.retryAfterSeconds());
+        }
+        try {
+            QueryResponse responseSolr = V1ResponseParser.query(solr, solrQuery);
+            if (breaker != null) {
+                breaker.onSuccess(epoch);
+            }
+            return responseSolr;
+        } catch (SolrServerException | IOException | RuntimeException | Error e) {
+            if (breaker != null) {
+                breaker.onFailure(epoch, e);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @param epoch - circuit breaker epoch the query was allowed in, unused without a breaker
+     */
+    private QueryResponse coalescedFetch(String key, SolrQuery solrQuery, long epoch) throws SolrServerException, IOException {
+        // an identical query in flight was sent in an older epoch, its outcome would not count for the probe
+        if (!coalesce || (breaker != null && breaker.isProbe(epoch))) {
+            return fetch(key, solrQuery, epoch);
+        }
+
+        QueryResponse responseSolr;
+        CompletableFuture<QueryResponse> call = new CompletableFuture<>();
+        CompletableFuture<QueryResponse> running = inFlight.putIfAbsent(key, call);
+        if (running != null) {
+            deduplicated.increment();
+            LOG.debug("Waiting for identical in-flight query: {}", key);
+            return copy(await(running));
+        }
+        try {
+            responseSolr = fetch(key, solrQuery, epoch);
+            call.complete(responseSolr);
+            return responseSolr;
+        } catch (SolrServerException | IOException | RuntimeException | Error e) {
+            call.completeExceptionally(e);
+            throw e;
+        } finally {
+            // the response is already cached at this point, so later requests won't miss both
+            inFlight.remove(key, call);
+        }
+    }
+
+    private QueryResponse fetch(String key, SolrQuery solrQuery, long epoch) throws SolrServerException, IOException {
+        long start = System.nanoTime();
+        QueryResponse responseSolr;
+        activeQueries.incrementAndGet();
+        try {
+            responseSolr = hedger != null ? hedger.query(solrQuery) : V1ResponseParser.query(solr, solrQuery);
+            if (breaker != null) {
+                breaker.onSuccess(epoch);
+            }
+        } catch (SolrServerException | IOException | RuntimeException | Error e) {
+            if (breaker != null) {
+                breaker.onFailure(epoch, e);
+            }
+            throw e;
+        } finally {
+            activeQueries.decrementAndGet();
+        }
+        Stage.SOLR.record(System.nanoTime() - start);
+        Stage.SOLR_QTIME.record(responseSolr.getQTime() * 1_000_000L);
+        if (cache.isEnabled()) {
+            cache.put(key, responseSolr);
+        }
+        return responseSolr;
+    }
+
+    /**
+     * @param responseSolr - response of a query another request is answering too
+     * @return a copy with its own sections and document list, the documents themselves are still shared, read only
+     */
+    static QueryResponse copy(QueryResponse responseSolr) {
+        NamedList<Object> response = responseSolr.getResponse().clone();
+        int results = response.indexOf("response", 0);
+        if (results >= 0 && response.getVal(results) instanceof SolrDocumentList) {
+            SolrDocumentList documents = (SolrDocumentList) response.getVal(results);
+            response.setVal(results, documents instanceof V1DocumentList ? ((V1DocumentList) documents).copy() : copy(documents));
+        }
+        QueryResponse copy = new QueryResponse(response, null);
+        copy.setElapsedTime(responseSolr.getElapsedTime());
+        return copy;
+    }
+
+    private static SolrDocumentList copy(SolrDocumentList documents) {
+        SolrDocumentList copy = new SolrDocumentList();
+        copy.addAll(documents);
+        copy.setNumFound(documents.getNumFound());
+        copy.setStart(documents.getStart());
+        copy.setMaxScore(documents.getMaxScore());
+        copy.setNumFoundExact(documents.getNumFoundExact());
+        return copy;
+    }
+
+    /**
+     * @param key   - normalized query
+     * @param error - why Solr could not answer
+     * @return the expired cached response of the query, marked as stale
+     * @throws SolrServerException, IOException the error when there is none
+     */
+    private QueryResponse staleOr(String key, Exception error) throws SolrServerException, IOException {
+        QueryResponse stale = key != null && cache.isEnabled() ? cache.getStale(key) : null;
+        if (stale != null) {
+            LOG.debug("Serving stale response: {}", key);
+            return new StaleQueryResponse(stale);
+        }
+        if (error instanceof SolrServerException)
+            throw (SolrServerException) error;
+        if (error instanceof IOException)
+            throw (IOException) error;
+        throw (RuntimeException) error;
+    }
+
+    public boolean isPrefetchEnabled() {
+        return prefetchExecutor != null;
+    }
+
+    /**
+     * Fetches a query in the background, ahead of it being asked for, unless the rate limit is reached or Solr is
+     * busy with foreground queries. Queries already cached or running are not sent again. Never blocks.
+     *
+     * @param solrQuery - usually the next page of a search that was just answered
+     */
+    public void prefetch(SolrQuery solrQuery) {
+        if (prefetchExecutor == null) {
+            return;
+        }
+        if (activeQueries.get() >= prefetchMaxActiveQueries || (breaker != null && !breaker.isClosed()) || !prefetchRate.tryTake(1)) {
+            prefetchSkipped.increment();
+            return;
+        }
+        prefetchExecutor.execute(() -> {
+            String key = cacheKey(solrQuery);
+            if (cache.contains(key) || prefetched.contains(key)) {
+                return;
+            }
+            // a foreground search of the same page arriving meanwhile waits for this one
+            CompletableFuture<QueryResponse> call = new CompletableFuture<>();
+            if (coalesce && inFlight.putIfAbsent(key, call) != null) {
+                return;
+            }
+            try {
+                prefetchRequests.increment();
+                QueryResponse responseSolr = V1ResponseParser.query(solr, solrQuery);
+                prefetched.put(key, responseSolr);
+                call.complete(responseSolr);
+            } catch (SolrServerException | IOException | RuntimeException e) {
+                prefetchFailed.increment();
+                LOG.debug("Prefetch failed: {}", key, e);
+                call.completeExceptionally(e);
+            } finally {
+                inFlight.remove(key, call);
+            }
+        });
+    }
+
+    /**
+     * Drops the cached and prefetched responses, e.g. when the index changes
+     */
+    public void clearCaches() {
+        cache.clear();
+        if (prefetched != null) {
+            prefetched.clear();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (prefetchExecutor != null) {
+            prefetchExecutor.shutdownNow();
+        }
+        if (hedger != null) {
+            hedger.close();
+        }
+        if (breaker != null) {
+            breaker.close();
+        }
+    }
+
+    /**
+     * @param running - Solr query running on another thread
+     * @return its response, or its exception rethrown as it was
+     */
+    static QueryResponse await(CompletableFuture<QueryResponse> running) throws SolrServerException, IOException {
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a Solr query", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SolrServerException)
+                throw (SolrServerException) cause;
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new SolrServerException(cause);
+        }
+    }
+
+    /**
+     * @return number of requests that waited for an identical in-flight query instead of sending their own
+     */
+    public long getDeduplicated() {
+        return deduplicated.sum();
+    }
+
+    public QueryResultCache<QueryResponse> getCache() {
+        return cache;
+    }
+
+    public SolrClient getSolrClient() {
+        return solr;
+    }
+
+    /**
+     * Cached response returned after its time to live because Solr could not answer
+     */
+    public static class StaleQueryResponse extends QueryResponse {
+        private static final long serialVersionUID = 1L;
+
+        StaleQueryResponse(QueryResponse cached) {
+            super(cached.getResponse(), null);
+        }
+    }
+
+    /**
+     * Normalized form of the final query: parameters sorted by name and filter queries sorted by value,
+     * so the same search reaches the same key whatever order the filters were added in.
+     *
+     * @param solrQuery - query about to be sent to Solr
+     * @return url encoded parameter string
+     */
+    static String cacheKey(SolrQuery solrQuery) {
+        ModifiableSolrParams normalized = new ModifiableSolrParams();
+        for (String name : new TreeSet<>(solrQuery.getParameterNames())) {
+            String[] values = solrQuery.getParams(name);
+            if (CommonParams.FQ.equals(name)) {
+                values = values.clone();
+                Arrays.sort(values);
+            }
+            normalized.set(name, values);
+        }
+        return normalized.toQueryString();
+    }
+}
@@ -0,0 +1,223 @@
+package pt.arquivo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pt.arquivo.metrics.ImageSearchMetrics;
+
+/**
+ * Hedged Solr queries: when a query has not been answered after the solrHedgePercentile latency of the recent ones,
+ * the same query is sent to another replica and whichever answers first is used. A query failing before then is
+ * retried the same way right away, unless Solr rejected it as a bad request, which every replica would. Hedges are
+ * paid from a budget that grows by solrHedgeBudgetPercent of a request for every query, so they never add more than
+ * that share of load to the cluster, even when all replicas are slow.
+ * <p>
+ * The replicas are the solrHedgeServers clients, taken in turn. Without them the hedge goes through the main client,
+ * which for SolrCloud picks a replica at random, or reaches another node when the host is a load balancer.
+ */
+class SolrRequestHedger implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(SolrRequestHedger.class);
+    // the budget is kept in hundredths of a request
+    private static final long HEDGE_COST = 100;
+    private static final long MAX_BUDGET = 10 * HEDGE_COST;
+    private static final int LATENCY_SAMPLES = 1024;
+    private static final int RECOMPUTE_EVERY = 128;
+
+    private final SolrClient solr;
+    private final List<SolrClient> replicas;
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger nextReplica = new AtomicInteger();
+
+    private final double percentile = ImageSearchProperties.getInt("solrHedgePercentile", 95) / 100.0;
+    private final long minDelayNanos = TimeUnit.MILLISECONDS.toNanos(ImageSearchProperties.getLong("solrHedgeMinDelayMillis", 20));
+    private final long budgetPerQuery = ImageSearchProperties.getInt("solrHedgeBudgetPercent", 5);
+    private final AtomicLong budget = new AtomicLong(MAX_BUDGET);
+
+    // latencies of the last queries, the hedge delay is recomputed from them every RECOMPUTE_EVERY queries
+    private final AtomicLongArray latencies = new AtomicLongArray(LATENCY_SAMPLES);
+    private final AtomicLong recorded = new AtomicLong();
+    private volatile long delayNanos;
+
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder wins = new LongAdder();
+    private final LongAdder overBudget = new LongAdder();
+
+    /**
+     * @param solr     - main client, the first attempt always goes through it
+     * @param replicas - clients for other replicas or nodes of the same collection, may be empty
+     */
+    SolrRequestHedger(SolrClient solr, List<SolrClient> replicas) {
+        this.solr = solr;
+        this.replicas = replicas;
+        this.delayNanos = Math.max(minDelayNanos, TimeUnit.MILLISECONDS.toNanos(ImageSearchProperties.getLong("solrHedgeInitialDelayMillis", 200)));
+        int threads = ImageSearchProperties.getInt("solrHedgeThreads", 256);
+        AtomicInteger threadNumber = new AtomicInteger();
+        // no queue: when all threads are busy the query runs on the caller, unhedged
+        this.executor = new ThreadPoolExecutor(0, threads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "imagesearch-solr-hedge-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        ImageSearchMetrics.registerCounter("solr_hedges_total", "Solr queries sent again to another replica", hedges::sum);
+        ImageSearchMetrics.registerCounter("solr_hedge_wins_total", "Hedged Solr queries answered first by the hedge", wins::sum);
+        ImageSearchMetrics.registerCounter("solr_hedges_over_budget_total", "Solr queries not hedged because the budget was spent", overBudget::sum);
+        ImageSearchMetrics.registerGauge("solr_hedge_delay_seconds", "Time after which a Solr query is hedged", () -> delayNanos / 1e9);
+        LOG.info("[SolrRequestHedger] Hedging Solr queries after their p" + Math.round(percentile * 100) + " latency, "
+                + replicas.size() + " replica clients");
+    }
+
+    /**
+     * @param solrQuery - query to run
+     * @return the first successful response of the query or its hedge
+     * @throws SolrServerException, IOException of the first attempt when both fail
+     */
+    QueryResponse query(SolrQuery solrQuery) throws SolrServerException, IOException {
+        long start = System.nanoTime();
+        QueryResponse responseSolr = hedgedQuery(solrQuery);
+        // as the caller waited for it, whichever attempt answered, so cancelled slow attempts still count
+        recordLatency(System.nanoTime() - start);
+        return responseSolr;
+    }
+
+    private QueryResponse hedgedQuery(SolrQuery solrQuery) throws SolrServerException, IOException {
+        budget.accumulateAndGet(budgetPerQuery, (current, earned) -> Math.min(MAX_BUDGET, current + earned));
+
+        CompletableFuture<QueryResponse> first;
+        try {
+            first = attempt(solr, solrQuery);
+        } catch (RejectedExecutionException e) {
+            return V1ResponseParser.query(solr, solrQuery);
+        }
+        try {
+            return first.get(delayNanos, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            // slow, worth another replica
+        } catch (ExecutionException e) {
+            // failed, worth another replica unless the query itself was rejected, e.g. a syntax error
+            if (!SolrCircuitBreaker.isFailure(e.getCause())) {
+                return SolrQueryExecutor.await(first);
+            }
+        } catch (InterruptedException e) {
+            first.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for Solr", e);
+        }
+
+        CompletableFuture<QueryResponse> hedge = takeBudget() ? hedge(solrQuery) : null;
+        if (hedge == null) {
+            return SolrQueryExecutor.await(first);
+        }
+        // when both fail this is the original query, and its error is thrown
+        CompletableFuture<QueryResponse> winner = firstSuccessful(first, hedge);
+        QueryResponse responseSolr = SolrQueryExecutor.await(winner);
+        if (winner == hedge) {
+            wins.increment();
+            first.cancel(true);
+        } else {
+            hedge.cancel(true);
+        }
+        return responseSolr;
+    }
+
+    private CompletableFuture<QueryResponse> hedge(SolrQuery solrQuery) {
+        SolrClient replica = replicas.isEmpty() ? solr : replicas.get(Math.floorMod(nextReplica.getAndIncrement(), replicas.size()));
+        try {
+            CompletableFuture<QueryResponse> hedge = attempt(replica, solrQuery);
+            hedges.increment();
+            return hedge;
+        } catch (RejectedExecutionException e) {
+            budget.addAndGet(HEDGE_COST);
+            return null;
+        }
+    }
+
+    private CompletableFuture<QueryResponse> attempt(SolrClient client, SolrQuery solrQuery) {
+        CompletableFuture<QueryResponse> attempt = new CompletableFuture<>();
+        Future<?> task = executor.submit(() -> {
+            try {
+                attempt.complete(V1ResponseParser.query(client, solrQuery));
+            } catch (Throwable e) {
+                attempt.completeExceptionally(e);
+            }
+        });
+        // interrupts the losing request
+        attempt.whenComplete((responseSolr, e) -> {
+            if (attempt.isCancelled()) {
+                task.cancel(true);
+            }
+        });
+        return attempt;
+    }
+
+    private static CompletableFuture<QueryResponse> firstSuccessful(CompletableFuture<QueryResponse> first, CompletableFuture<QueryResponse> hedge) {
+        CompletableFuture<CompletableFuture<QueryResponse>> winner = new CompletableFuture<>();
+        AtomicInteger failed = new AtomicInteger();
+        for (CompletableFuture<QueryResponse> attempt : Arrays.asList(first, hedge)) {
+            attempt.whenComplete((responseSolr, e) -> {
+                if (e == null) {
+                    winner.complete(attempt);
+                } else if (failed.incrementAndGet() == 2) {
+                    winner.complete(first);
+                }
+            });
+        }
+        return winner.join();
+    }
+
+    private boolean takeBudget() {
+        while (true) {
+            long current = budget.get();
+            if (current < HEDGE_COST) {
+                overBudget.increment();
+                return false;
+            }
+            if (budget.compareAndSet(current, current - HEDGE_COST)) {
+                return true;
+            }
+        }
+    }
+
+    private void recordLatency(long nanos) {
+        long sample = recorded.getAndIncrement();
+        latencies.set((int) (sample % LATENCY_SAMPLES), nanos);
+        if (sample % RECOMPUTE_EVERY == RECOMPUTE_EVERY - 1) {
+            int samples = (int) Math.min(sample + 1, LATENCY_SAMPLES);
+            long[] sorted = new long[samples];
+            for (int i = 0; i < samples; i++) {
+                sorted[i] = latencies.get(i);
+            }
+            Arrays.sort(sorted);
+            delayNanos = Math.max(minDelayNanos, sorted[(int) Math.min(samples - 1, Math.floor(samples * percentile))]);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        ImageSearchMetrics.unregister("solr_hedges_total");
+        ImageSearchMetrics.unregister("solr_hedge_wins_total");
+        ImageSearchMetrics.unregister("solr_hedges_over_budget_total");
+        ImageSearchMetrics.unregister("solr_hedge_delay_seconds");
+    }
+}
@@ -0,0 +1,155 @@
+package pt.arquivo;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pt.arquivo.metrics.ImageSearchMetrics;
+
+/**
+ * Keeps results from the spam domains listed in spam.txt out of the searches. The list becomes a single negative
+ * pageHost filter query, covering each domain and its subdomains, built once per version of the list: every search
+ * sends the same string, so Solr computes it once per searcher and answers it from its filter cache afterwards.
+ * The file is checked for changes every spamListReloadSeconds and the filter rebuilt when it was modified.
+ */
+class SpamFilter implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(SpamFilter.class);
+    static final String DEFAULT_RESOURCE = "spam.txt";
+
+    private final File file;
+    private final ScheduledExecutorService reloader;
+    private volatile long lastModified;
+    private volatile String filterQuery;
+    private volatile int domains;
+
+    /**
+     * @param path          - spam list file, null for spam.txt in the classpath
+     * @param reloadSeconds - time between checks for changes, 0 loads the list only once
+     */
+    SpamFilter(String path, long reloadSeconds) {
+        this.file = path != null ? new File(path) : classpathFile();
+        if (file != null) {
+            reload();
+        } else {
+            // packed in a jar, it cannot change
+            load(SpamFilter.class.getClassLoader().getResourceAsStream(DEFAULT_RESOURCE));
+        }
+
+        if (file != null && reloadSeconds > 0) {
+            reloader = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "imagesearch-spam-list");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reloader.scheduleWithFixedDelay(this::reload, reloadSeconds, reloadSeconds, TimeUnit.SECONDS);
+        } else {
+            reloader = null;
+        }
+
+        ImageSearchMetrics.registerGauge("spam_domains", "Domains filtered out of the results as spam", () -> domains);
+    }
+
+    private static File classpathFile() {
+        URL resource = SpamFilter.class.getClassLoader().getResource(DEFAULT_RESOURCE);
+        if (resource == null || !"file".equals(resource.getProtocol())) {
+            return null;
+        }
+        try {
+            return new File(resource.toURI());
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the negative filter query, or null if the list is empty
+     */
+    String getFilterQuery() {
+        return filterQuery;
+    }
+
+    void reload() {
+        long modified = file.lastModified();
+        if (modified == lastModified) {
+            return;
+        }
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            load(in);
+            lastModified = modified;
+            LOG.info("[SpamFilter] Loaded " + domains + " spam domains from " + file);
+        } catch (IOException e) {
+            // keep filtering with the previous list
+            LOG.error("[SpamFilter] Error reading " + file, e);
+        }
+    }
+
+    private void load(InputStream in) {
+        if (in == null) {
+            LOG.error("[SpamFilter] " + DEFAULT_RESOURCE + " not found, spam is not filtered");
+            return;
+        }
+        Set<String> spamDomains = new TreeSet<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String domain = line.trim().toLowerCase(Locale.ROOT);
+                if (domain.startsWith("www.")) {
+                    domain = domain.substring(4);
+                }
+                if (!domain.isEmpty() && !domain.startsWith("#")) {
+                    spamDomains.add(domain);
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("[SpamFilter] Error reading the spam list", e);
+            return;
+        }
+        filterQuery = buildFilterQuery(spamDomains);
+        domains = spamDomains.size();
+    }
+
+    /**
+     * @param spamDomains - domains, without www.
+     * @return e.g. -pageHost:(olx.pt OR *.olx.pt OR tree.pt OR *.tree.pt), null if there are no domains
+     */
+    static String buildFilterQuery(Set<String> spamDomains) {
+        if (spamDomains.isEmpty()) {
+            return null;
+        }
+        StringBuilder filterQuery = new StringBuilder("-pageHost:(");
+        boolean first = true;
+        for (String domain : spamDomains) {
+            String escaped = ClientUtils.escapeQueryChars(domain);
+            if (!first) {
+                filterQuery.append(" OR ");
+            }
+            filterQuery.append(escaped).append(" OR *.").append(escaped);
+            first = false;
+        }
+        return filterQuery.append(')').toString();
+    }
+
+    @Override
+    public void close() {
+        if (reloader != null) {
+            reloader.shutdownNow();
+        }
+        ImageSearchMetrics.unregister("spam_domains");
+    }
+}
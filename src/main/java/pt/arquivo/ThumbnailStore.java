@@ -0,0 +1,193 @@
+package pt.arquivo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import pt.arquivo.metrics.ImageSearchMetrics;
+
+/**
+ * Thumbnails of the indexed images, by imgDigest, decoded from their stored imgSrcBase64 field. Each one costs a
+ * single document lookup the first time and then comes from a LRU cache bounded by thumbnailCacheMaxBytes, so
+ * searches no longer have to carry the base64 data of every result to show them.
+ */
+class ThumbnailStore implements Closeable {
+    static final String V2_THUMBNAIL = APIVersionTranslator.v1Tov2("imgThumbnailBase64");
+    static final String V2_DIGEST = APIVersionTranslator.v1Tov2("imgDigest");
+    private static final String V2_MIMETYPE = "imgMimeType";
+    private static final V1Fields.Slots SLOTS = V1Fields.slots(V2_THUMBNAIL + "," + V2_MIMETYPE);
+    // object headers and fields, next to the image bytes
+    private static final long ENTRY_OVERHEAD = 96;
+
+    private final SolrQueryExecutor solrExecutor;
+    private final List<String> filterQueries;
+    private final QueryResultCache<Thumbnail> cache;
+    private final LongAdder notFound = new LongAdder();
+
+    /**
+     * @param solrExecutor  - Solr access layer, the lookups only go through its circuit breaker
+     * @param filterQueries - filters the image must pass, the same that keep blocked images out of the searches
+     */
+    ThumbnailStore(SolrQueryExecutor solrExecutor, List<String> filterQueries) {
+        this.solrExecutor = solrExecutor;
+        this.filterQueries = filterQueries;
+        this.cache = new QueryResultCache<>(
+                ImageSearchProperties.getLong("thumbnailCacheMaxBytes", 64L * 1024 * 1024),
+                ImageSearchProperties.getLong("thumbnailCacheTtlSeconds", 86400) * 1000,
+                thumbnail -> thumbnail.bytes.length + ENTRY_OVERHEAD);
+
+        ImageSearchMetrics.registerCounter("thumbnail_cache_hits_total", "Thumbnails answered from the thumbnail cache", cache::getHits);
+        ImageSearchMetrics.registerCounter("thumbnail_cache_misses_total", "Thumbnails looked up in Solr", cache::getMisses);
+        ImageSearchMetrics.registerCounter("thumbnail_cache_evictions_total", "Thumbnail cache entries evicted or expired", cache::getEvictions);
+        ImageSearchMetrics.registerGauge("thumbnail_cache_bytes", "Size of the thumbnails in the thumbnail cache", cache::getBytes);
+        ImageSearchMetrics.registerCounter("thumbnail_not_found_total", "Thumbnails asked for images that are not indexed or have none", notFound::sum);
+    }
+
+    /**
+     * @param digest - imgDigest of an image
+     * @return false for digests that cannot be a single path segment of the thumbnail endpoint, e.g. with a /,
+     * which containers reject even when encoded
+     */
+    static boolean isServable(String digest) {
+        return !digest.isEmpty() && digest.indexOf('/') < 0;
+    }
+
+    /**
+     * @param digest - imgDigest of the image
+     * @return its cached thumbnail, null if it has to be fetched with {@link #fetch(String)}
+     */
+    Thumbnail getCached(String digest) {
+        return cache.isEnabled() ? cache.get(digest) : null;
+    }
+
+    /**
+     * @param digest - imgDigest of the image, missing from the cache
+     * @return its thumbnail, or null if the image is not indexed, is blocked or has no thumbnail
+     * @throws SolrCircuitBreaker.OpenException when Solr is known to be down
+     */
+    Thumbnail fetch(String digest) throws SolrServerException, IOException {
+        SolrQuery solrQuery = new SolrQuery("{!term f=" + V2_DIGEST + "}" + digest);
+        for (String filterQuery : filterQueries) {
+            solrQuery.addFilterQuery(filterQuery);
+        }
+        solrQuery.setFields(V2_THUMBNAIL, V2_MIMETYPE);
+        solrQuery.setRows(1);
+        V1DocumentList documents = V1DocumentList.of(solrExecutor.queryUncached(solrQuery).getResults(), SLOTS);
+        Thumbnail thumbnail = documents.getDocumentCount() == 0 ? null : decode(documents.getDocuments().get(0));
+        if (thumbnail == null) {
+            notFound.increment();
+            return null;
+        }
+        if (cache.isEnabled()) {
+            cache.put(digest, thumbnail);
+        }
+        return thumbnail;
+    }
+
+    /**
+     * @param document - with the base64 thumbnail, plain or as a data URI, and the mime type of the original image,
+     *                 in their {@link #SLOTS}
+     * @return the decoded thumbnail, null if there is none or it is not valid base64
+     */
+    static Thumbnail decode(Object[] document) {
+        Object value = firstValue(document[SLOTS.slot(V2_THUMBNAIL)]);
+        if (value == null) {
+            return null;
+        }
+        String base64 = value.toString();
+        String contentType = null;
+        if (base64.startsWith("data:")) {
+            int comma = base64.indexOf(',');
+            if (comma < 0) {
+                return null;
+            }
+            // data:image/png;base64,...
+            int semicolon = base64.indexOf(';');
+            contentType = base64.substring(5, semicolon >= 0 && semicolon < comma ? semicolon : comma);
+            base64 = base64.substring(comma + 1);
+        }
+        byte[] bytes;
+        try {
+            bytes = Base64.getMimeDecoder().decode(base64);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (bytes.length == 0) {
+            return null;
+        }
+        if (contentType == null || contentType.isEmpty()) {
+            contentType = sniffContentType(bytes);
+        }
+        if (contentType == null) {
+            Object mimeType = firstValue(document[SLOTS.slot(V2_MIMETYPE)]);
+            contentType = mimeType != null ? mimeType.toString() : "application/octet-stream";
+        }
+        return new Thumbnail(bytes, contentType);
+    }
+
+    private static Object firstValue(Object value) {
+        if (value instanceof Collection) {
+            Collection<?> values = (Collection<?>) value;
+            return values.isEmpty() ? null : values.iterator().next();
+        }
+        return value;
+    }
+
+    /**
+     * @return the image type from its first bytes, null if it is not one browsers commonly show
+     */
+    private static String sniffContentType(byte[] bytes) {
+        if (startsWith(bytes, 0, 0xFF, 0xD8, 0xFF)) {
+            return "image/jpeg";
+        }
+        if (startsWith(bytes, 0, 0x89, 'P', 'N', 'G')) {
+            return "image/png";
+        }
+        if (startsWith(bytes, 0, 'G', 'I', 'F', '8')) {
+            return "image/gif";
+        }
+        if (startsWith(bytes, 0, 'R', 'I', 'F', 'F') && startsWith(bytes, 8, 'W', 'E', 'B', 'P')) {
+            return "image/webp";
+        }
+        return null;
+    }
+
+    private static boolean startsWith(byte[] bytes, int offset, int... prefix) {
+        if (bytes.length < offset + prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if ((bytes[offset + i] & 0xFF) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        ImageSearchMetrics.unregister("thumbnail_cache_hits_total");
+        ImageSearchMetrics.unregister("thumbnail_cache_misses_total");
+        ImageSearchMetrics.unregister("thumbnail_cache_evictions_total");
+        ImageSearchMetrics.unregister("thumbnail_cache_bytes");
+        ImageSearchMetrics.unregister("thumbnail_not_found_total");
+    }
+
+    /**
+     * Decoded thumbnail, shared by the requests that hit the cache, so read only
+     */
+    static final class Thumbnail {
+        final byte[] bytes;
+        final String contentType;
+
+        Thumbnail(byte[] bytes, String contentType) {
+            this.bytes = bytes;
+            this.contentType = contentType;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package pt.arquivo;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket, kept as the single timestamp of the generic cell rate algorithm: the time at which the
+ * bucket would be full again. Taking tokens moves it forward, and is refused when that would leave the bucket
+ * below empty, so callers never wait and contend only on a compare-and-set.
+ */
+class TokenBucket {
+    private final long nanosPerToken;
+    private final long burstNanos;
+    private final AtomicLong fullAt;
+
+    /**
+     * @param tokensPerSecond - refill rate
+     * @param burst           - capacity, tokens that can be taken at once after being idle
+     */
+    TokenBucket(double tokensPerSecond, double burst) {
+        this.nanosPerToken = (long) (TimeUnit.SECONDS.toNanos(1) / tokensPerSecond);
+        this.burstNanos = (long) (nanosPerToken * Math.max(1, burst));
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * @param tokens - cost of the operation
+     * @return whether the tokens were available, they are taken only then
+     */
+    boolean tryTake(double tokens) {
+        return nanosUntilAvailable(tokens) == 0;
+    }
+
+    /**
+     * Takes the tokens if they are available
+     *
+     * @param tokens - cost of the operation
+     * @return 0 if the tokens were taken, otherwise how long until they would be available
+     */
+    long nanosUntilAvailable(double tokens) {
+        long cost = (long) (nanosPerToken * tokens);
+        while (true) {
+            long now = System.nanoTime();
+            long current = fullAt.get();
+            long base = current - now < 0 ? now : current;
+            long next = base + cost;
+            long wait = next - now - burstNanos;
+            if (wait > 0) {
+                return wait;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * @return whether the bucket has refilled completely, i.e. it holds nothing worth keeping
+     */
+    boolean isFull() {
+        return fullAt.get() - System.nanoTime() <= 0;
+    }
+}
@@ -0,0 +1,161 @@
+package pt.arquivo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+
+/**
+ * Solr results kept compact: each document is just its field values, in an array indexed by the
+ * {@link V1Fields.Slots} of the query fl, instead of a {@link SolrDocument} map per document.
+ * {@link V1ResponseParser} decodes the Solr response straight into it.
+ * <p>
+ * It is a {@link SolrDocumentList} only to travel inside a QueryResponse, with numFound, start and maxScore set,
+ * the documents themselves are in {@link #getDocuments()} and the list stays empty.
+ */
+final class V1DocumentList extends SolrDocumentList {
+    private static final long serialVersionUID = 1L;
+
+    // documents only travel inside a response in memory, they are never serialized
+    private final transient V1Fields.Slots slots;
+    private final transient List<Object[]> documents;
+    // slots of the fields of each document in the order Solr returned them, the order they are written in.
+    // Documents with the same fields in the same order share the array
+    private final transient List<int[]> fieldOrders;
+    // order of the fields set so far in the document being decoded
+    private final transient int[] decodedOrder;
+    private transient int decodedFields;
+
+    V1DocumentList(V1Fields.Slots slots, int expectedDocuments) {
+        this.slots = slots;
+        this.documents = new ArrayList<>(expectedDocuments);
+        this.fieldOrders = new ArrayList<>(expectedDocuments);
+        this.decodedOrder = new int[slots.size()];
+    }
+
+    /**
+     * @param results - results of a Solr query, as parsed by solrj or by {@link V1ResponseParser}
+     * @param slots   - slots of the fl the query was sent with
+     */
+    static V1DocumentList of(SolrDocumentList results, V1Fields.Slots slots) {
+        if (results instanceof V1DocumentList) {
+            // the fl is part of the query, so a response for the same query was decoded into the same slots
+            return (V1DocumentList) results;
+        }
+        V1DocumentList documents = new V1DocumentList(slots, results != null ? results.size() : 0);
+        if (results == null) {
+            return documents;
+        }
+        documents.setNumFound(results.getNumFound());
+        documents.setStart(results.getStart());
+        documents.setMaxScore(results.getMaxScore());
+        documents.setNumFoundExact(results.getNumFoundExact());
+        for (SolrDocument result : results) {
+            documents.addDocument(result);
+        }
+        return documents;
+    }
+
+    /**
+     * Starts decoding a document, its fields are set with {@link #setField(Object[], int, Object)} and it is then
+     * added with {@link #addDocument(Object[])}, one document at a time
+     */
+    Object[] newDocument() {
+        decodedFields = 0;
+        return new Object[slots.size()];
+    }
+
+    /**
+     * @param document - from {@link #newDocument()}
+     * @param slot     - slot of the field, fields that were not asked for (-1) are dropped
+     * @param value    - field value, null values are dropped too
+     */
+    void setField(Object[] document, int slot, Object value) {
+        if (slot < 0 || value == null) {
+            return;
+        }
+        if (document[slot] == null) {
+            decodedOrder[decodedFields++] = slot;
+        }
+        document[slot] = value;
+    }
+
+    /**
+     * @param document - from {@link #newDocument()}, with its fields set
+     */
+    void addDocument(Object[] document) {
+        int[] previous = fieldOrders.isEmpty() ? null : fieldOrders.get(fieldOrders.size() - 1);
+        int[] fieldOrder = previous != null && sameOrder(previous) ? previous : Arrays.copyOf(decodedOrder, decodedFields);
+        addDocument(document, fieldOrder);
+    }
+
+    private boolean sameOrder(int[] fieldOrder) {
+        if (fieldOrder.length != decodedFields) {
+            return false;
+        }
+        for (int i = 0; i < decodedFields; i++) {
+            if (fieldOrder[i] != decodedOrder[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param document   - decoded into the same slots, e.g. by another response, it is not modified
+     * @param fieldOrder - slots of its fields in the order Solr returned them, it is not modified either
+     */
+    void addDocument(Object[] document, int[] fieldOrder) {
+        documents.add(document);
+        fieldOrders.add(fieldOrder);
+    }
+
+    /**
+     * @param result - document as solrj decodes it, only the fields in the slots are kept
+     */
+    void addDocument(SolrDocument result) {
+        Object[] document = newDocument();
+        for (Map.Entry<String, Object> field : result) {
+            setField(document, slots.slot(field.getKey()), field.getValue());
+        }
+        addDocument(document);
+    }
+
+    /**
+     * @return another list with the same documents, which are shared and must not be modified
+     */
+    V1DocumentList copy() {
+        V1DocumentList copy = new V1DocumentList(slots, documents.size());
+        for (int i = 0; i < documents.size(); i++) {
+            copy.addDocument(documents.get(i), fieldOrders.get(i));
+        }
+        copy.setNumFound(getNumFound());
+        copy.setStart(getStart());
+        copy.setMaxScore(getMaxScore());
+        copy.setNumFoundExact(getNumFoundExact());
+        return copy;
+    }
+
+    List<Object[]> getDocuments() {
+        return documents;
+    }
+
+    int getDocumentCount() {
+        return documents.size();
+    }
+
+    /**
+     * @param index - index of the document in {@link #getDocuments()}
+     * @return slots of the fields of the document, in the order Solr returned them
+     */
+    int[] getFieldOrder(int index) {
+        return fieldOrders.get(index);
+    }
+
+    V1Fields.Slots getSlots() {
+        return slots;
+    }
+}
@@ -0,0 +1,321 @@
+package pt.arquivo;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+
+import static pt.arquivo.ImageSearchResults.V2_IMAGELINKTOARCHIVE;
+import static pt.arquivo.ImageSearchResults.V2_IMAGETSTAMP;
+import static pt.arquivo.ImageSearchResults.V2_IMAGEURL;
+import static pt.arquivo.ImageSearchResults.V2_PAGELINKTOARCHIVE;
+import static pt.arquivo.ImageSearchResults.V2_PAGETSTAMP;
+import static pt.arquivo.ImageSearchResults.V2_PAGEURL;
+import static pt.arquivo.ImageSearchResults.V2_SAFE;
+import static pt.arquivo.ImageSearchResults.V2_WAYBACKADDRESS;
+
+/**
+ * The V1 fields requested in a search ("fields" and "more"), resolved once per distinct list: the fl sent to Solr,
+ * the {@link Slots} its documents are decoded into, and for each slot the V1 name it is written with, if any.
+ * Writing a document is then a walk over an array, with no field name translated or looked up.
+ */
+final class V1Fields {
+    // "fields" is free text, lists past this many are resolved for every request instead of cached
+    private static final int MAX_CACHED = 1024;
+    private static final Map<String, V1Fields> CACHE = new ConcurrentHashMap<>();
+    private static final Map<String, V1Fields> LOOKUP_CACHE = new ConcurrentHashMap<>();
+    private static final Map<String, Slots> SLOTS = new ConcurrentHashMap<>();
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    static final String V1_THUMBNAIL_BASE64 = "imgThumbnailBase64";
+    // link to the thumbnail endpoint, built from the imgDigest
+    static final String V1_THUMBNAIL_URL = "imgThumbnailUrl";
+
+    private static final byte VALUE = 0;
+    private static final byte SAFE = 1;
+    private static final byte IMAGE_TSTAMP = 2;
+    private static final byte PAGE_TSTAMP = 3;
+
+    private final String solrFields;
+    private final Slots slots;
+    // V1 name of each slot, null when it was not requested
+    private final String[] names;
+    private final byte[] kinds;
+    private final int imgUrl;
+    private final int imgTstamp;
+    private final int pageUrl;
+    private final int pageTstamp;
+    private final String imgLinkToArchive;
+    private final String pageLinkToArchive;
+    private final int digest;
+    private final boolean thumbnailUrl;
+
+    private V1Fields(String flString, boolean withDigest) {
+        String[] requestedFields = flString.split(",");
+
+        StringBuilder V2Builder = new StringBuilder();
+        for (String field : requestedFields)
+            if (!V1_THUMBNAIL_URL.equals(field))
+                V2Builder.append(APIVersionTranslator.v1Tov2(field)).append(",");
+        // We always want URL and timestamp:
+        if (V2Builder.indexOf(V2_IMAGEURL) < 0)
+            V2Builder.append(V2_IMAGEURL).append(",");
+        if (V2Builder.indexOf(V2_IMAGETSTAMP) < 0)
+            V2Builder.append(V2_IMAGETSTAMP).append(",");
+        if (V2Builder.indexOf(V2_PAGEURL) < 0)
+            V2Builder.append(V2_PAGEURL).append(",");
+        if (V2Builder.indexOf(V2_PAGETSTAMP) < 0)
+            V2Builder.append(V2_PAGETSTAMP).append(",");
+        this.thumbnailUrl = contains(requestedFields, V1_THUMBNAIL_URL);
+        // not a Solr field, its links are built from the imgDigest
+        String v2Digest = APIVersionTranslator.v1Tov2("imgDigest");
+        if ((thumbnailUrl || withDigest) && !contains(V2Builder.toString().split(","), v2Digest))
+            V2Builder.append(v2Digest).append(",");
+        this.solrFields = V2Builder.toString();
+        this.slots = slots(solrFields);
+
+        this.names = new String[slots.size()];
+        this.kinds = new byte[slots.size()];
+        for (int slot = 0; slot < slots.size(); slot++) {
+            String field = slots.fields[slot];
+            String v1Field = APIVersionTranslator.v2Tov1(field);
+            names[slot] = contains(requestedFields, v1Field) ? v1Field : null;
+            kinds[slot] = V2_SAFE.equals(field) ? SAFE
+                    : V2_IMAGETSTAMP.equals(field) ? IMAGE_TSTAMP
+                    : V2_PAGETSTAMP.equals(field) ? PAGE_TSTAMP
+                    : VALUE;
+        }
+        this.imgUrl = slots.slot(V2_IMAGEURL);
+        this.imgTstamp = slots.slot(V2_IMAGETSTAMP);
+        this.pageUrl = slots.slot(V2_PAGEURL);
+        this.pageTstamp = slots.slot(V2_PAGETSTAMP);
+        this.digest = slots.slot(v2Digest);
+
+        String v1ImageLink = APIVersionTranslator.v2Tov1(V2_IMAGELINKTOARCHIVE);
+        String v1PageLink = APIVersionTranslator.v2Tov1(V2_PAGELINKTOARCHIVE);
+        this.imgLinkToArchive = contains(requestedFields, v1ImageLink) ? v1ImageLink : null;
+        this.pageLinkToArchive = contains(requestedFields, v1PageLink) ? v1PageLink : null;
+    }
+
+    /**
+     * @param flString - comma separated V1 fields
+     */
+    static V1Fields of(String flString) {
+        return of(CACHE, flString, false);
+    }
+
+    /**
+     * Same as {@link #of(String)}, also fetching the imgDigest whether it was requested or not, see
+     * {@link #getDigestSlot()}
+     *
+     * @param flString - comma separated V1 fields
+     */
+    static V1Fields withDigest(String flString) {
+        return of(LOOKUP_CACHE, flString, true);
+    }
+
+    private static V1Fields of(Map<String, V1Fields> cache, String flString, boolean withDigest) {
+        V1Fields fields = cache.get(flString);
+        if (fields == null) {
+            fields = new V1Fields(flString, withDigest);
+            if (cache.size() < MAX_CACHED) {
+                cache.putIfAbsent(flString, fields);
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * @param solrFields - fl parameter of a Solr query
+     * @return the slots the documents returned for it are decoded into
+     */
+    static Slots slots(String solrFields) {
+        Slots slots = SLOTS.get(solrFields);
+        if (slots == null) {
+            slots = new Slots(solrFields);
+            if (SLOTS.size() < MAX_CACHED) {
+                SLOTS.putIfAbsent(solrFields, slots);
+            }
+        }
+        return slots;
+    }
+
+    /**
+     * @param flString - comma separated V1 fields
+     * @return the same fields with the base64 thumbnail replaced by the link to the thumbnail endpoint
+     */
+    static String thumbnailsAsUrls(String flString) {
+        if (!flString.contains(V1_THUMBNAIL_BASE64)) {
+            return flString;
+        }
+        String[] fields = flString.split(",");
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i].equals(V1_THUMBNAIL_BASE64)) {
+                fields[i] = V1_THUMBNAIL_URL;
+            }
+        }
+        return String.join(",", fields);
+    }
+
+    private static boolean contains(String[] requestedFields, String field) {
+        for (String requested : requestedFields) {
+            if (requested.equals(field)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the fl parameter to send to Solr, V2 names plus the fields the links to the archive are built from
+     */
+    String getSolrFields() {
+        return solrFields;
+    }
+
+    Slots getSlots() {
+        return slots;
+    }
+
+    /**
+     * @return slot of the imgDigest, -1 if it is not fetched
+     */
+    int getDigestSlot() {
+        return digest;
+    }
+
+    /**
+     * Writes a document in its V1 form: the requested fields in the order Solr returned them, followed by the
+     * requested links to the archive and to the thumbnail.
+     *
+     * @param out          - writer positioned where the document is expected
+     * @param gson         - used to serialize field values that are not plain strings, numbers or booleans
+     * @param document     - field values by slot, see {@link V1DocumentList}
+     * @param fieldOrder   - slots in the order Solr returned them
+     * @param thumbnailURL - thumbnail endpoint, followed by the imgDigest in the links to the thumbnails
+     * @return tstamp/url of the document, for the search log
+     */
+    String write(JsonWriter out, Gson gson, Object[] document, int[] fieldOrder, String thumbnailURL) throws IOException {
+        // each timestamp is formatted once, for the field, its link to the archive and the log
+        Object imgTstampValue = value(document, imgTstamp);
+        String imgTstamp = imgTstampValue != null ? APIVersionTranslator.formatV1(imgTstampValue) : null;
+        String pageTstamp = null;
+        Object imgUrl = value(document, this.imgUrl);
+
+        out.beginObject();
+        for (int slot : fieldOrder) {
+            Object value = document[slot];
+            if (value == null || names[slot] == null) {
+                continue;
+            }
+            out.name(names[slot]);
+            switch (kinds[slot]) {
+                case SAFE:
+                    out.value(Float.valueOf(1.0f - (float) value));
+                    break;
+                case IMAGE_TSTAMP:
+                    out.value(imgTstamp);
+                    break;
+                case PAGE_TSTAMP:
+                    pageTstamp = APIVersionTranslator.formatV1(value);
+                    out.value(pageTstamp);
+                    break;
+                default:
+                    writeValue(out, gson, value);
+                    break;
+            }
+        }
+
+        if (imgLinkToArchive != null) {
+            out.name(imgLinkToArchive).value(V2_WAYBACKADDRESS + imgTstamp + "im_/" + imgUrl);
+        }
+
+        if (pageLinkToArchive != null) {
+            if (pageTstamp == null) {
+                Object pageTstampValue = value(document, this.pageTstamp);
+                pageTstamp = pageTstampValue != null ? APIVersionTranslator.formatV1(pageTstampValue) : null;
+            }
+            out.name(pageLinkToArchive).value(V2_WAYBACKADDRESS + pageTstamp + "/" + value(document, pageUrl));
+        }
+
+        Object digestValue = value(document, digest);
+        if (thumbnailUrl && digestValue != null && ThumbnailStore.isServable(digestValue.toString())) {
+            out.name(V1_THUMBNAIL_URL).value(thumbnailURL + encodePathSegment(digestValue.toString()));
+        }
+
+        out.endObject();
+        return imgTstamp + "/" + imgUrl;
+    }
+
+    /**
+     * @return the value percent-encoded as a URL path segment (RFC 3986), the container decodes it back
+     */
+    static String encodePathSegment(String value) {
+        StringBuilder encoded = new StringBuilder(value.length());
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xFF);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || "-._~!$&'()*+,;=:@".indexOf(c) >= 0) {
+                encoded.append(c);
+            } else {
+                encoded.append('%').append(HEX[c >> 4]).append(HEX[c & 0xF]);
+            }
+        }
+        return encoded.toString();
+    }
+
+    private static Object value(Object[] document, int slot) {
+        return slot >= 0 ? document[slot] : null;
+    }
+
+    // Same output Gson's runtime type adapters produce, without the adapter lookup for the common value types
+    private static void writeValue(JsonWriter out, Gson gson, Object value) throws IOException {
+        if (value instanceof String) {
+            out.value((String) value);
+        } else if (value instanceof Number) {
+            out.value((Number) value);
+        } else if (value instanceof Boolean) {
+            out.value((Boolean) value);
+        } else {
+            gson.toJson(value, value.getClass(), out);
+        }
+    }
+
+    /**
+     * Distinct fields of a Solr fl parameter, each with its index in the arrays documents are decoded into
+     */
+    static final class Slots {
+        final String solrFields;
+        final String[] fields;
+        private final HashMap<String, Integer> index = new HashMap<>();
+
+        private Slots(String solrFields) {
+            this.solrFields = solrFields;
+            Map<String, Integer> distinct = new LinkedHashMap<>();
+            for (String field : solrFields.split("[,\\s]+")) {
+                if (!field.isEmpty()) {
+                    distinct.putIfAbsent(field, distinct.size());
+                }
+            }
+            this.fields = distinct.keySet().toArray(new String[0]);
+            this.index.putAll(distinct);
+        }
+
+        /**
+         * @param field - V2 field name
+         * @return its slot, or -1 if it was not asked for
+         */
+        int slot(String field) {
+            Integer slot = index.get(field);
+            return slot != null ? slot : -1;
+        }
+
+        int size() {
+            return fields.length;
+        }
+    }
+}
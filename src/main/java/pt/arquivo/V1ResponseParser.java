@@ -0,0 +1,129 @@
+package pt.arquivo;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.BinaryResponseParser;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.util.DataInputInputStream;
+import org.apache.solr.common.util.JavaBinCodec;
+
+/**
+ * Decodes the javabin results of a search straight into a {@link V1DocumentList}: each document becomes an array of
+ * the values of the fields in the query fl, without the {@link SolrDocument} and its map solrj builds for every
+ * document. Field names are read once per response as javabin sends them once, and resolved to slots with a single
+ * lookup of the already hashed string.
+ */
+class V1ResponseParser extends BinaryResponseParser {
+    private final V1Fields.Slots slots;
+
+    /**
+     * @param slots - slots of the fl the query is sent with
+     */
+    V1ResponseParser(V1Fields.Slots slots) {
+        this.slots = slots;
+    }
+
+    /**
+     * Runs a query decoding its results with a {@link V1ResponseParser}, when it has a fl.
+     * Clients that do not use the parser of the request, or a response that is not javabin, give a plain
+     * SolrDocumentList, see {@link V1DocumentList#of(SolrDocumentList, V1Fields.Slots)}.
+     *
+     * @param solr      - client to send the query through
+     * @param solrQuery - query to run
+     */
+    static QueryResponse query(SolrClient solr, SolrQuery solrQuery) throws SolrServerException, IOException {
+        String solrFields = solrQuery.get(CommonParams.FL);
+        if (solrFields == null) {
+            return solr.query(solrQuery);
+        }
+        QueryRequest request = new QueryRequest(solrQuery);
+        request.setResponseParser(new V1ResponseParser(V1Fields.slots(solrFields)));
+        return request.process(solr);
+    }
+
+    @Override
+    protected JavaBinCodec createCodec() {
+        return new Codec();
+    }
+
+    private class Codec extends JavaBinCodec {
+        Codec() {
+            super(null, stringCache);
+        }
+
+        @Override
+        public SolrDocumentList readSolrDocumentList(DataInputInputStream dis) throws IOException {
+            // numFound, start, maxScore and numFoundExact, as written by Solr
+            List<?> header = (List<?>) readVal(dis);
+            tagByte = dis.readByte();
+            if (tagByte >>> 5 != ARR >>> 5) {
+                return toDocuments(header, readObject(dis));
+            }
+            int size = readSize(dis);
+            V1DocumentList documents = new V1DocumentList(slots, size);
+            setHeader(documents, header);
+            for (int i = 0; i < size; i++) {
+                tagByte = dis.readByte();
+                if (tagByte == SOLRDOC) {
+                    documents.addDocument(readDocument(dis, documents));
+                } else {
+                    addDocument(documents, readObject(dis));
+                }
+            }
+            return documents;
+        }
+
+        /**
+         * Same as {@link JavaBinCodec#readSolrDocument(DataInputInputStream)}, into the slots of the fl
+         */
+        private Object[] readDocument(DataInputInputStream dis, V1DocumentList documents) throws IOException {
+            tagByte = dis.readByte();
+            int size = readSize(dis);
+            Object[] document = documents.newDocument();
+            for (int i = 0; i < size; i++) {
+                Object name = readVal(dis);
+                if (name instanceof SolrDocument) {
+                    // child document, not part of the API
+                    continue;
+                }
+                Object value = readVal(dis);
+                documents.setField(document, slots.slot((String) name), value);
+            }
+            return document;
+        }
+
+        private SolrDocumentList toDocuments(List<?> header, Object values) {
+            V1DocumentList documents = new V1DocumentList(slots, values instanceof List ? ((List<?>) values).size() : 0);
+            setHeader(documents, header);
+            if (values instanceof List) {
+                for (Object value : (List<?>) values) {
+                    addDocument(documents, value);
+                }
+            }
+            return documents;
+        }
+
+        private void addDocument(V1DocumentList documents, Object value) {
+            if (value instanceof SolrDocument) {
+                documents.addDocument((SolrDocument) value);
+            }
+        }
+
+        private void setHeader(SolrDocumentList documents, List<?> header) {
+            documents.setNumFound((Long) header.get(0));
+            documents.setStart((Long) header.get(1));
+            documents.setMaxScore((Float) header.get(2));
+            if (header.size() > 3) {
+                documents.setNumFoundExact((Boolean) header.get(3));
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package pt.arquivo.metrics;
+
+import java.io.PrintWriter;
+import java.math.BigDecimal;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed bucket histogram. Recording only increments {@link LongAdder}s, so it takes no lock and allocates nothing.
+ * Values are recorded in their raw unit (e.g. nanoseconds) and scaled when exported (e.g. to seconds).
+ */
+public class Histogram {
+    private final long[] bounds;
+    private final double unitScale;
+    // "le" label of each bucket, in the exported unit
+    private final String[] upperBounds;
+    private final LongAdder[] buckets;
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * @param bounds    - upper bounds of the buckets, ascending, in the recorded unit
+     * @param unitScale - factor that turns the recorded unit into the exported one
+     */
+    public Histogram(long[] bounds, double unitScale) {
+        this.bounds = bounds;
+        this.unitScale = unitScale;
+        this.upperBounds = new String[bounds.length];
+        for (int i = 0; i < bounds.length; i++) {
+            upperBounds[i] = BigDecimal.valueOf(bounds[i]).multiply(BigDecimal.valueOf(unitScale)).stripTrailingZeros().toPlainString();
+        }
+        // the last bucket is +Inf
+        this.buckets = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long value) {
+        int low = 0;
+        int high = bounds.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (bounds[middle] < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        buckets[low].increment();
+        sum.add(value);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * Writes the _bucket, _sum and _count series in the Prometheus text format
+     *
+     * @param out    - metrics output
+     * @param name   - metric name, without suffix
+     * @param labels - extra labels, e.g. stage="parse", or an empty string
+     */
+    void write(PrintWriter out, String name, String labels) {
+        String separator = labels.isEmpty() ? "" : ",";
+        long cumulative = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            cumulative += buckets[i].sum();
+            out.print(name + "_bucket{" + labels + separator + "le=\"" + upperBounds[i] + "\"} ");
+            out.print(cumulative);
+            out.print('\n');
+        }
+        cumulative += buckets[bounds.length].sum();
+        out.print(name + "_bucket{" + labels + separator + "le=\"+Inf\"} ");
+        out.print(cumulative);
+        out.print('\n');
+        String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+        out.print(name + "_sum" + braces + " ");
+        out.print(sum.sum() * unitScale);
+        out.print('\n');
+        out.print(name + "_count" + braces + " ");
+        out.print(cumulative);
+        out.print('\n');
+    }
+}
@@ -0,0 +1,195 @@
+package pt.arquivo.metrics;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Process wide metrics of the image search API, exported in the Prometheus text format by {@link MetricsServlet}.
+ * Recording on the request path only increments counters, it takes no lock and allocates nothing.
+ */
+public final class ImageSearchMetrics {
+    private static final String PREFIX = "imagesearch_";
+
+    // 0.5ms to 30s, in nanoseconds
+    private static final long[] LATENCY_BOUNDS = {
+            500_000L, 1_000_000L, 2_500_000L, 5_000_000L, 10_000_000L, 25_000_000L, 50_000_000L, 100_000_000L,
+            250_000_000L, 500_000_000L, 1_000_000_000L, 2_500_000_000L, 5_000_000_000L, 10_000_000_000L, 30_000_000_000L};
+    private static final double NANOS_TO_SECONDS = 1e-9;
+    // 1KB to 16MB
+    private static final long[] SIZE_BOUNDS = {
+            1024L, 4096L, 16_384L, 65_536L, 262_144L, 1_048_576L, 4_194_304L, 16_777_216L};
+
+    public enum Stage {
+        /** request parameters to Solr query */
+        PARSE,
+        /** wall time of the Solr round trip, cache hits excluded */
+        SOLR,
+        /** QTime reported by Solr */
+        SOLR_QTIME,
+        /** V1 translation and JSON serialization, they happen in the same pass since the results are streamed */
+        SERIALIZE,
+        /** final flush of the response to the client */
+        WRITE,
+        /** whole request */
+        REQUEST;
+
+        private final String label = "stage=\"" + name().toLowerCase() + "\"";
+        private final Histogram histogram = new Histogram(LATENCY_BOUNDS, NANOS_TO_SECONDS);
+
+        public void record(long nanos) {
+            histogram.record(nanos);
+        }
+    }
+
+    public enum Filter {
+        SIZE, TYPE, SITE_SEARCH, COLLECTION;
+
+        private final String label = "filter=\"" + name().toLowerCase() + "\"";
+        private final LongAdder requests = new LongAdder();
+
+        public void increment() {
+            requests.increment();
+        }
+    }
+
+    private static final LongAdder REQUESTS = new LongAdder();
+    private static final Histogram RESPONSE_BYTES = new Histogram(SIZE_BOUNDS, 1);
+    private static final LongAdder NOT_MODIFIED = new LongAdder();
+    private static final LongAdder BATCHES = new LongAdder();
+    private static final LongAdder BATCH_QUERIES = new LongAdder();
+    private static final LongAdder COMPRESSED_RESPONSES = new LongAdder();
+    private static final LongAdder COMPRESSION_BYTES_IN = new LongAdder();
+    private static final LongAdder COMPRESSION_BYTES_OUT = new LongAdder();
+    private static final ConcurrentHashMap<String, LongAdder> ERRORS = new ConcurrentHashMap<>();
+    // metrics owned by other components, e.g. cache hits, read when exported
+    private static final Map<String, Sampled> SAMPLED = new ConcurrentSkipListMap<>();
+
+    private ImageSearchMetrics() {
+    }
+
+    public static void requestReceived() {
+        REQUESTS.increment();
+    }
+
+    public static void responseWritten(long bytes) {
+        RESPONSE_BYTES.record(bytes);
+    }
+
+    public static void notModified() {
+        NOT_MODIFIED.increment();
+    }
+
+    /**
+     * @param queries - searches in the batch, each one is also counted as a request
+     */
+    public static void batchReceived(int queries) {
+        BATCHES.increment();
+        BATCH_QUERIES.add(queries);
+    }
+
+    /**
+     * @param bytesIn  - body size before compression
+     * @param bytesOut - bytes sent
+     */
+    public static void responseCompressed(long bytesIn, long bytesOut) {
+        COMPRESSED_RESPONSES.increment();
+        COMPRESSION_BYTES_IN.add(bytesIn);
+        COMPRESSION_BYTES_OUT.add(bytesOut);
+    }
+
+    public static void error(Throwable e) {
+        // the adder is only created the first time a class shows up
+        ERRORS.computeIfAbsent(e.getClass().getName(), name -> new LongAdder()).increment();
+    }
+
+    /**
+     * Exports a counter kept by another component. Registering the same name again replaces it.
+     *
+     * @param name  - metric name, without the imagesearch_ prefix
+     * @param help  - description
+     * @param value - read on every export
+     */
+    public static void registerCounter(String name, String help, DoubleSupplier value) {
+        SAMPLED.put(name, new Sampled("counter", help, value));
+    }
+
+    /**
+     * Exports a gauge kept by another component. Registering the same name again replaces it.
+     *
+     * @param name  - metric name, without the imagesearch_ prefix
+     * @param help  - description
+     * @param value - read on every export
+     */
+    public static void registerGauge(String name, String help, DoubleSupplier value) {
+        SAMPLED.put(name, new Sampled("gauge", help, value));
+    }
+
+    public static void unregister(String name) {
+        SAMPLED.remove(name);
+    }
+
+    static void write(PrintWriter out) {
+        header(out, "requests_total", "counter", "Search requests received");
+        out.print(PREFIX + "requests_total " + REQUESTS.sum() + "\n");
+
+        header(out, "filter_requests_total", "counter", "Search requests using each filter");
+        for (Filter filter : Filter.values()) {
+            out.print(PREFIX + "filter_requests_total{" + filter.label + "} " + filter.requests.sum() + "\n");
+        }
+
+        header(out, "errors_total", "counter", "Failed requests by exception class");
+        for (Map.Entry<String, LongAdder> error : ERRORS.entrySet()) {
+            out.print(PREFIX + "errors_total{exception=\"" + error.getKey() + "\"} " + error.getValue().sum() + "\n");
+        }
+
+        header(out, "stage_duration_seconds", "histogram", "Latency of each stage of a search request");
+        for (Stage stage : Stage.values()) {
+            stage.histogram.write(out, PREFIX + "stage_duration_seconds", stage.label);
+        }
+
+        header(out, "response_bytes", "histogram", "Size of the response bodies");
+        RESPONSE_BYTES.write(out, PREFIX + "response_bytes", "");
+
+        header(out, "not_modified_total", "counter", "Conditional requests answered with 304 before querying Solr");
+        out.print(PREFIX + "not_modified_total " + NOT_MODIFIED.sum() + "\n");
+
+        header(out, "batch_requests_total", "counter", "Batch searches received");
+        out.print(PREFIX + "batch_requests_total " + BATCHES.sum() + "\n");
+        header(out, "batch_queries_total", "counter", "Searches received in batches");
+        out.print(PREFIX + "batch_queries_total " + BATCH_QUERIES.sum() + "\n");
+
+        header(out, "compressed_responses_total", "counter", "Responses sent gzipped");
+        out.print(PREFIX + "compressed_responses_total " + COMPRESSED_RESPONSES.sum() + "\n");
+        header(out, "compression_input_bytes_total", "counter", "Size of the gzipped responses before compression");
+        out.print(PREFIX + "compression_input_bytes_total " + COMPRESSION_BYTES_IN.sum() + "\n");
+        header(out, "compression_output_bytes_total", "counter", "Size of the gzipped responses as sent");
+        out.print(PREFIX + "compression_output_bytes_total " + COMPRESSION_BYTES_OUT.sum() + "\n");
+
+        for (Map.Entry<String, Sampled> sampled : SAMPLED.entrySet()) {
+            Sampled metric = sampled.getValue();
+            header(out, sampled.getKey(), metric.type, metric.help);
+            out.print(PREFIX + sampled.getKey() + " " + metric.value.getAsDouble() + "\n");
+        }
+    }
+
+    private static void header(PrintWriter out, String name, String type, String help) {
+        out.print("# HELP " + PREFIX + name + " " + help + "\n");
+        out.print("# TYPE " + PREFIX + name + " " + type + "\n");
+    }
+
+    private static class Sampled {
+        final String type;
+        final String help;
+        final DoubleSupplier value;
+
+        Sampled(String type, String help, DoubleSupplier value) {
+            this.type = type;
+            this.help = help;
+            this.value = value;
+        }
+    }
+}
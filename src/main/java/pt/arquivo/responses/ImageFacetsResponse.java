@@ -0,0 +1,33 @@
+package pt.arquivo.responses;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts of the images matching a search, per value of the facets asked for
+ */
+public class ImageFacetsResponse {
+	String serviceName = "Arquivo.pt - image search service.";
+	String linkToService;
+	long totalItems;
+	Map<String, List<Count>> facets;
+
+	public ImageFacetsResponse(String linkToService, long totalItems, Map<String, List<Count>> facets) {
+		this.linkToService = linkToService;
+		this.totalItems = totalItems;
+		this.facets = facets;
+	}
+
+	/**
+	 * Images with a value, the value being what the search parameter of the facet takes to filter on it
+	 */
+	public static class Count {
+		String value;
+		long count;
+
+		public Count(String value, long count) {
+			this.value = value;
+			this.count = count;
+		}
+	}
+}
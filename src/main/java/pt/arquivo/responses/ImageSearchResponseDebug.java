@@ -10,4 +10,8 @@ public class ImageSearchResponseDebug {
 		this.responseHeader= responseHeader;
 		this.response = response;
 	}
+
+	public ImageSearchResults getResponse() {
+		return response;
+	}
 }
\ No newline at end of file